@@ -0,0 +1,136 @@
+package org.apache.lucene.spatial;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import com.spatial4j.core.context.SpatialContext;
+import com.spatial4j.core.context.SpatialContextFactory;
+import com.spatial4j.core.shape.Point;
+import org.apache.lucene.util.BytesRef;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The distance from a query point to the nearest of one document's points,
+ * per distance calculator, format and number of points. The one-off
+ * {@link MultiPointEncoding#calcDistance} makes a finder per call; the others
+ * reuse one, as searches do.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MultiPointDistanceBenchmark {
+
+  @Param({"1", "10", "100", "4096"})
+  public int pointsPerDoc;
+
+  /** As named by the "distCalculator" attribute of the field type. */
+  @Param({"haversine", "lawOfCosines", "vincentySphere", "cartesian"})
+  public String calculator;
+
+  @Param({"flat", "blocked"})
+  public String format;
+
+  /** For the pruned variants, in degrees. */
+  @Param({"1"})
+  public double maxDistance;
+
+  private SpatialContext ctx;
+  private Point origin;
+  private BytesRef bytes;
+  //decoded, as MultiPointCache holds them
+  private float[] xs;
+  private float[] ys;
+  private NearestPointFinder finder;
+  private NearestPointFinder approximateFinder;
+
+  @Setup
+  public void setup() {
+    Map<String, String> args = new HashMap<String, String>();
+    args.put("distCalculator", calculator);
+    if (calculator.startsWith("cartesian")) {
+      args.put("geo", "false");
+      args.put("worldBounds", "-180 -90 180 90");
+    }
+    ctx = SpatialContextFactory.makeSpatialContext(args, getClass().getClassLoader());
+    Random random = new Random(42);
+    bytes = MultiPointEncoding.pointsToBytes(MultiPointEncodingBenchmark.randomPoints(ctx, random, pointsPerDoc),
+        MultiPointEncodingBenchmark.formatId(format));
+    float[] floats = MultiPointEncoding.bytesToFloats(bytes);
+    xs = new float[pointsPerDoc];
+    ys = new float[pointsPerDoc];
+    for (int i = 0; i < pointsPerDoc; i++) {
+      xs[i] = floats[i * 2];
+      ys[i] = floats[i * 2 + 1];
+    }
+    origin = ctx.makePoint(random.nextDouble() * 360 - 180, random.nextDouble() * 180 - 90);
+    finder = new NearestPointFinder(origin, ctx);
+    approximateFinder = new NearestPointFinder(new Point[]{origin}, ctx, true);
+  }
+
+  @Benchmark
+  public double calcDistance() {
+    return MultiPointEncoding.calcDistance(origin, bytes, ctx);
+  }
+
+  @Benchmark
+  public double minDistance() {
+    return finder.minDistance(bytes);
+  }
+
+  @Benchmark
+  public double minDistancePruned() {
+    return finder.minDistance(bytes, maxDistance);
+  }
+
+  @Benchmark
+  public double minDistanceApproximate() {
+    return approximateFinder.minDistance(bytes);
+  }
+
+  @Benchmark
+  public double minDistanceDecoded() {
+    return finder.minDistance(xs, ys, 0, pointsPerDoc, Double.MAX_VALUE);
+  }
+
+  @Benchmark
+  public double minDistanceApproximateDecoded() {
+    return approximateFinder.minDistance(xs, ys, 0, pointsPerDoc, Double.MAX_VALUE);
+  }
+
+  @Benchmark
+  public boolean anyWithin() {
+    return finder.anyWithin(bytes, maxDistance);
+  }
+}
@@ -0,0 +1,123 @@
+package org.apache.lucene.spatial;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import com.spatial4j.core.context.SpatialContext;
+import com.spatial4j.core.shape.Point;
+import org.apache.lucene.util.BytesRef;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding and decoding of one document's points by {@link MultiPointEncoding},
+ * per format and number of points.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MultiPointEncodingBenchmark {
+
+  /** Indexed by the FORMAT_ constants. */
+  static final String[] FORMAT_NAMES = {"flat", "bbox", "blocked", "compact", "vector"};
+
+  @Param({"1", "10", "100", "4096"})
+  public int pointsPerDoc;
+
+  @Param({"flat", "bbox", "blocked", "compact", "vector"})
+  public String format;
+
+  private int formatId;
+  private List<Point> points;
+  private double[] xy;
+  private double[] scratch;//pointsToBytes(double[]...) reorders its input
+  private BytesRef bytes;
+  private final MultiPointCursor cursor = new MultiPointCursor();
+
+  @Setup
+  public void setup() {
+    formatId = formatId(format);
+    points = randomPoints(SpatialContext.GEO, new Random(42), pointsPerDoc);
+    xy = new double[pointsPerDoc * 2];
+    for (int i = 0; i < pointsPerDoc; i++) {
+      xy[i * 2] = points.get(i).getX();
+      xy[i * 2 + 1] = points.get(i).getY();
+    }
+    scratch = new double[xy.length];
+    bytes = MultiPointEncoding.pointsToBytes(points, formatId);
+  }
+
+  @Benchmark
+  public BytesRef pointsToBytes() {
+    return MultiPointEncoding.pointsToBytes(points, formatId);
+  }
+
+  @Benchmark
+  public BytesRef pointsToBytesPrimitive() {
+    System.arraycopy(xy, 0, scratch, 0, xy.length);
+    return MultiPointEncoding.pointsToBytes(scratch, pointsPerDoc, formatId, MultiPointEncoding.DEFAULT_PRECISION);
+  }
+
+  @Benchmark
+  public float[] bytesToFloats() {
+    return MultiPointEncoding.bytesToFloats(bytes);
+  }
+
+  @Benchmark
+  public float cursor() {
+    float sum = 0;
+    cursor.reset(bytes);
+    while (cursor.next()) {
+      sum += cursor.getX() + cursor.getY();
+    }
+    return sum;
+  }
+
+  static int formatId(String format) {
+    for (int i = 0; i < FORMAT_NAMES.length; i++) {
+      if (FORMAT_NAMES[i].equals(format))
+        return i;
+    }
+    throw new IllegalArgumentException("Unknown format: " + format);
+  }
+
+  /** Uniformly distributed over the world, from a fixed seed so that runs are comparable. */
+  static List<Point> randomPoints(SpatialContext ctx, Random random, int count) {
+    List<Point> points = new ArrayList<Point>(count);
+    for (int i = 0; i < count; i++) {
+      points.add(ctx.makePoint(random.nextDouble() * 360 - 180, random.nextDouble() * 180 - 90));
+    }
+    return points;
+  }
+}
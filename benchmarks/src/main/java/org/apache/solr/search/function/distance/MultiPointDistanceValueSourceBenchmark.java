@@ -0,0 +1,143 @@
+package org.apache.solr.search.function.distance;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import com.spatial4j.core.context.SpatialContext;
+import com.spatial4j.core.shape.Point;
+import org.apache.lucene.analysis.core.KeywordAnalyzer;
+import org.apache.lucene.document.BinaryDocValuesField;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.queries.function.FunctionValues;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.spatial.MultiPointEncoding;
+import org.apache.lucene.store.RAMDirectory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link MultiPointDistanceValueSource} over a synthetic in-memory index:
+ * the distance of every document, as a function query scores them, and the
+ * top 10 by distance, as a sort finds them.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MultiPointDistanceValueSourceBenchmark {
+
+  private static final String FIELD = "pointsDV";
+  private static final String[] FORMAT_NAMES = {"flat", "bbox", "blocked", "compact", "vector"};
+
+  //4096 flat points would be over the size limit of a binary doc value
+  @Param({"1", "10", "100", "1000"})
+  public int pointsPerDoc;
+
+  @Param({"flat", "bbox", "blocked", "compact", "vector"})
+  public String format;
+
+  @Param({"1000"})
+  public int numDocs;
+
+  @Param({"1"})
+  public int segments;
+
+  private RAMDirectory dir;
+  private DirectoryReader reader;
+  private IndexSearcher searcher;
+  private MultiPointDistanceValueSource valueSource;
+  private Sort sort;
+
+  @Setup
+  public void setup() throws IOException {
+    SpatialContext ctx = SpatialContext.GEO;
+    int formatId = Arrays.asList(FORMAT_NAMES).indexOf(format);
+    if (formatId < 0)
+      throw new IllegalArgumentException("Unknown format: " + format);
+    Random random = new Random(42);
+    dir = new RAMDirectory();
+    IndexWriter writer = new IndexWriter(dir, new IndexWriterConfig(new KeywordAnalyzer()));
+    List<Point> points = new ArrayList<Point>(pointsPerDoc);
+    for (int d = 0; d < numDocs; d++) {
+      points.clear();
+      for (int i = 0; i < pointsPerDoc; i++) {
+        points.add(ctx.makePoint(random.nextDouble() * 360 - 180, random.nextDouble() * 180 - 90));
+      }
+      Document doc = new Document();
+      doc.add(new BinaryDocValuesField(FIELD, MultiPointEncoding.pointsToBytes(points, formatId)));
+      writer.addDocument(doc);
+    }
+    writer.forceMerge(segments);
+    writer.close();
+    reader = DirectoryReader.open(dir);
+    searcher = new IndexSearcher(reader);
+    Point origin = ctx.makePoint(random.nextDouble() * 360 - 180, random.nextDouble() * 180 - 90);
+    valueSource = new MultiPointDistanceValueSource(FIELD, origin, ctx);
+    sort = new Sort(valueSource.getSortField(false));
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    reader.close();
+    dir.close();
+  }
+
+  @Benchmark
+  public double values() throws IOException {
+    double sum = 0;
+    for (LeafReaderContext leaf : reader.leaves()) {
+      FunctionValues values = valueSource.getValues(new HashMap(), leaf);
+      final int maxDoc = leaf.reader().maxDoc();
+      for (int doc = 0; doc < maxDoc; doc++) {
+        sum += values.doubleVal(doc);
+      }
+    }
+    return sum;
+  }
+
+  @Benchmark
+  public TopDocs sortTop10() throws IOException {
+    return searcher.search(new MatchAllDocsQuery(), 10, sort);
+  }
+}
@@ -0,0 +1,71 @@
+package org.apache.solr.loadtest;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.Arrays;
+
+/**
+ * Latencies of one kind of query, recorded by one thread. Every latency is
+ * kept, so percentiles are exact; merge the threads' recorders to report.
+ */
+public class LatencyRecorder {
+
+  private long[] nanos = new long[1024];
+  private int count;
+  private int errors;
+
+  public void record(long latencyNanos) {
+    if (count == nanos.length)
+      nanos = Arrays.copyOf(nanos, count * 2);
+    nanos[count++] = latencyNanos;
+  }
+
+  public void recordError() {
+    errors++;
+  }
+
+  public int getCount() {
+    return count;
+  }
+
+  public int getErrors() {
+    return errors;
+  }
+
+  /** All the latencies of the recorders, sorted. */
+  public static LatencyRecorder merge(Iterable<LatencyRecorder> recorders) {
+    LatencyRecorder merged = new LatencyRecorder();
+    for (LatencyRecorder recorder : recorders) {
+      if (merged.nanos.length < merged.count + recorder.count)
+        merged.nanos = Arrays.copyOf(merged.nanos, merged.count + recorder.count);
+      System.arraycopy(recorder.nanos, 0, merged.nanos, merged.count, recorder.count);
+      merged.count += recorder.count;
+      merged.errors += recorder.errors;
+    }
+    Arrays.sort(merged.nanos, 0, merged.count);
+    return merged;
+  }
+
+  /** The latency at the percentile, in milliseconds; requires {@link #merge}. */
+  public double percentileMillis(double percentile) {
+    if (count == 0)
+      return Double.NaN;
+    int index = (int) Math.ceil(percentile / 100 * count) - 1;
+    return nanos[Math.max(0, Math.min(count - 1, index))] / 1e6;
+  }
+}
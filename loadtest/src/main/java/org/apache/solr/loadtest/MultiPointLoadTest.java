@@ -0,0 +1,500 @@
+package org.apache.solr.loadtest;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import org.apache.lucene.index.BinaryDocValues;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.SortedNumericDocValues;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.spatial.MultiPointCursor;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.RamUsageEstimator;
+import org.apache.solr.client.solrj.embedded.EmbeddedSolrServer;
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.core.CoreContainer;
+import org.apache.solr.core.SolrCore;
+import org.apache.solr.schema.MultiPointDocValuesField;
+import org.apache.solr.search.SolrIndexSearcher;
+import org.apache.solr.util.RefCounted;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Drives concurrent multi-point distance queries against a synthetic index in
+ * an embedded Solr, with no external services, and reports for each field
+ * (each a different field type of the same points): QPS, latency percentiles,
+ * GC and allocation rates, and the size of the index and of each field. Run
+ * it with options as name=value arguments, e.g.
+ * <pre>
+ * java -Xmx4g -jar target/loadtest.jar docs=200000 points=lognormal:8:1 threads=32 fields=pointsDV,pointsDV_morton
+ * </pre>
+ * The options and their defaults are in {@link #DEFAULTS}. The same seed
+ * builds the same index and runs the same sequence of queries on each thread.
+ * The query types, weighted by "mix", are:
+ * <ul>
+ *   <li>"sort": all documents sorted by distDV</li>
+ *   <li>"recip": a function query scoring by the reciprocal distance</li>
+ *   <li>"filter": all documents filtered by mpdvfilt within "filterKm"</li>
+ *   <li>"nearest": mpdvnear sorted by distDV, for fields with a prefix tree</li>
+ * </ul>
+ */
+public class MultiPointLoadTest {
+
+  static final String CORE = "loadtest";
+  static final String[] QUERY_TYPES = {"sort", "recip", "filter", "nearest"};
+
+  static final Map<String, String> DEFAULTS = new LinkedHashMap<String, String>();
+  static {
+    DEFAULTS.put("docs", "100000");
+    DEFAULTS.put("points", "lognormal:5:1");//points per document; see SyntheticPoints
+    DEFAULTS.put("clusters", "50");
+    DEFAULTS.put("spreadKm", "25");
+    DEFAULTS.put("seed", "42");
+    DEFAULTS.put("fields", "pointsDV,pointsDV_compact,pointsDV_vector,pointsDV_morton,pointsDV_cached");
+    DEFAULTS.put("threads", "16");
+    DEFAULTS.put("warmup", "10");//seconds per field
+    DEFAULTS.put("duration", "30");//seconds per field
+    DEFAULTS.put("mix", "sort:4,recip:2,filter:1");
+    DEFAULTS.put("rows", "10");
+    DEFAULTS.put("filterKm", "10");
+    DEFAULTS.put("maxSegments", "0");//optimize down to this many; 0 to leave as indexed
+    DEFAULTS.put("dir", "");//Solr home to create; a temporary one, deleted after, if empty
+  }
+
+  private final Map<String, String> options;
+  private final String[] fields;
+  private final int threads;
+  private final int rows;
+  private final double filterKm;
+  private final long seed;
+  private final SyntheticPoints points;
+  private final double[] mixWeights = new double[QUERY_TYPES.length];//cumulative
+
+  private CoreContainer container;
+  private EmbeddedSolrServer server;
+
+  public MultiPointLoadTest(Map<String, String> options) {
+    this.options = options;
+    fields = options.get("fields").split(",");
+    threads = Integer.parseInt(options.get("threads"));
+    rows = Integer.parseInt(options.get("rows"));
+    filterKm = Double.parseDouble(options.get("filterKm"));
+    seed = Long.parseLong(options.get("seed"));
+    points = new SyntheticPoints(Integer.parseInt(options.get("clusters")),
+        Double.parseDouble(options.get("spreadKm")), options.get("points"), seed);
+    double total = 0;
+    for (String weighted : options.get("mix").split(",")) {
+      String[] parts = weighted.split(":");
+      int type = queryType(parts[0]);
+      mixWeights[type] = parts.length > 1 ? Double.parseDouble(parts[1]) : 1;
+    }
+    for (int i = 0; i < mixWeights.length; i++) {
+      total += mixWeights[i];
+      mixWeights[i] = total;
+    }
+    if (total <= 0)
+      throw new IllegalArgumentException("mix has no queries: " + options.get("mix"));
+    for (int i = 0; i < mixWeights.length; i++) {
+      mixWeights[i] /= total;
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    Map<String, String> options = new LinkedHashMap<String, String>(DEFAULTS);
+    for (String arg : args) {
+      int eq = arg.indexOf('=');
+      if (eq < 0 || !DEFAULTS.containsKey(arg.substring(0, eq))) {
+        System.err.println("Usage: " + MultiPointLoadTest.class.getSimpleName() + " [name=value ...]; defaults:");
+        for (Map.Entry<String, String> entry : DEFAULTS.entrySet()) {
+          System.err.println("  " + entry.getKey() + "=" + entry.getValue());
+        }
+        System.exit(1);
+      }
+      options.put(arg.substring(0, eq), arg.substring(eq + 1));
+    }
+    System.out.println("Options: " + options);
+    new MultiPointLoadTest(options).run();
+  }
+
+  public void run() throws Exception {
+    boolean temporary = options.get("dir").isEmpty();
+    Path home = temporary ? Files.createTempDirectory("mpdv-loadtest") : new File(options.get("dir")).toPath();
+    try {
+      start(home);
+      try {
+        index();
+        reportIndex();
+        for (String field : fields) {
+          runPhase(field, Integer.parseInt(options.get("warmup")));
+          report(field, runPhase(field, Integer.parseInt(options.get("duration"))));
+        }
+      } finally {
+        server.close();
+      }
+    } finally {
+      if (temporary)
+        delete(home);
+    }
+  }
+
+  /** Creates the Solr home from the resources, and starts the core. */
+  private void start(Path home) throws IOException {
+    copyResource("solr.xml", home.resolve("solr.xml"));
+    Path core = home.resolve(CORE);
+    copyResource("core/core.properties", core.resolve("core.properties"));
+    copyResource("core/conf/solrconfig.xml", core.resolve("conf").resolve("solrconfig.xml"));
+    copyResource("core/conf/schema.xml", core.resolve("conf").resolve("schema.xml"));
+    container = new CoreContainer(home.toString());
+    container.load();
+    server = new EmbeddedSolrServer(container, CORE);
+  }
+
+  private static void copyResource(String name, Path target) throws IOException {
+    Files.createDirectories(target.getParent());
+    InputStream in = MultiPointLoadTest.class.getResourceAsStream("/loadtest/" + name);
+    if (in == null)
+      throw new IOException("Missing resource " + name);
+    try {
+      Files.copy(in, target, StandardCopyOption.REPLACE_EXISTING);
+    } finally {
+      in.close();
+    }
+  }
+
+  private static void delete(Path dir) throws IOException {
+    Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+      @Override
+      public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+        Files.delete(file);
+        return FileVisitResult.CONTINUE;
+      }
+
+      @Override
+      public FileVisitResult postVisitDirectory(Path d, IOException e) throws IOException {
+        Files.delete(d);
+        return FileVisitResult.CONTINUE;
+      }
+    });
+  }
+
+  /** Adds the documents, each with the same points in every field. */
+  private void index() throws Exception {
+    final int docs = Integer.parseInt(options.get("docs"));
+    final int batchSize = 1000;
+    Random random = new Random(seed);
+    List<SolrInputDocument> batch = new ArrayList<SolrInputDocument>(batchSize);
+    long pointCount = 0;
+    long start = System.nanoTime();
+    for (int i = 0; i < docs; i++) {
+      SolrInputDocument doc = new SolrInputDocument();
+      doc.addField("id", Integer.toString(i));
+      int cluster = points.nextCluster(random);
+      int count = points.nextPointCount(random);
+      pointCount += count;
+      for (int p = 0; p < count; p++) {
+        String point = points.nextPoint(random, cluster);
+        for (String field : fields) {
+          doc.addField(field, point);
+        }
+      }
+      batch.add(doc);
+      if (batch.size() == batchSize) {
+        server.add(batch);
+        batch.clear();
+      }
+    }
+    if (!batch.isEmpty())
+      server.add(batch);
+    server.commit();
+    int maxSegments = Integer.parseInt(options.get("maxSegments"));
+    if (maxSegments > 0)
+      server.optimize(true, true, maxSegments);
+    double seconds = (System.nanoTime() - start) / 1e9;
+    System.out.printf("Indexed %d docs with %d points, in each of %d fields, in %.1fs (%.0f docs/s)%n",
+        docs, pointCount, fields.length, seconds, docs / seconds);
+  }
+
+  /**
+   * Reports the size of the index on disk, and for each field its points, the
+   * bytes of its DocValues as encoded (before the codec compresses them) and
+   * its prefix tree terms if any. Lucene doesn't break the files down by field.
+   */
+  private void reportIndex() throws IOException {
+    SolrCore core = container.getCore(CORE);
+    try {
+      RefCounted<SolrIndexSearcher> ref = core.getSearcher();
+      try {
+        SolrIndexSearcher searcher = ref.get();
+        List<LeafReaderContext> leaves = searcher.getIndexReader().leaves();
+        long diskBytes = 0;
+        File[] files = new File(core.getIndexDir()).listFiles();
+        if (files != null) {
+          for (File file : files) {
+            diskBytes += file.length();
+          }
+        }
+        System.out.printf("Index: %d docs in %d segments, %.1f MB on disk%n",
+            searcher.getIndexReader().numDocs(), leaves.size(), diskBytes / 1048576.0);
+        System.out.printf("%-20s %12s %14s %12s %14s%n", "field", "points", "DocValues MB", "bytes/point",
+            "terms");
+        MultiPointCursor cursor = new MultiPointCursor();
+        for (String field : fields) {
+          MultiPointDocValuesField type = (MultiPointDocValuesField) core.getLatestSchema().getField(field).getType();
+          long fieldPoints = 0;
+          long dvBytes = 0;
+          long terms = 0;
+          for (LeafReaderContext leaf : leaves) {
+            LeafReader reader = leaf.reader();
+            if (type.isMorton()) {
+              SortedNumericDocValues values = reader.getSortedNumericDocValues(field);
+              for (int doc = 0; values != null && doc < reader.maxDoc(); doc++) {
+                values.setDocument(doc);
+                fieldPoints += values.count();
+              }
+            } else {
+              BinaryDocValues values = reader.getBinaryDocValues(field);
+              Bits docsWithField = reader.getDocsWithField(field);
+              for (int doc = 0; values != null && doc < reader.maxDoc(); doc++) {
+                if (!docsWithField.get(doc))
+                  continue;
+                BytesRef bytes = values.get(doc);
+                dvBytes += bytes.length;
+                fieldPoints += cursor.reset(bytes).size();
+              }
+            }
+            Terms fieldTerms = reader.terms(field);
+            if (fieldTerms != null)
+              terms += Math.max(0, fieldTerms.size());
+          }
+          if (type.isMorton())
+            dvBytes = fieldPoints * RamUsageEstimator.NUM_BYTES_LONG;
+          System.out.printf("%-20s %12d %14.1f %12.1f %14s%n", field, fieldPoints, dvBytes / 1048576.0,
+              fieldPoints > 0 ? (double) dvBytes / fieldPoints : 0, terms > 0 ? Long.toString(terms) : "-");
+        }
+      } finally {
+        ref.decref();
+      }
+    } finally {
+      core.close();
+    }
+  }
+
+  /** Runs the queries on the field from every thread for the duration. */
+  private PhaseResult runPhase(final String field, int seconds) throws Exception {
+    final long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+    final CountDownLatch ready = new CountDownLatch(threads);
+    ExecutorService pool = Executors.newFixedThreadPool(threads);
+    PhaseResult result = new PhaseResult();
+    long gcCountBefore = gcCount();
+    long gcMillisBefore = gcMillis();
+    long start = System.nanoTime();
+    try {
+      List<Future<Worker>> futures = new ArrayList<Future<Worker>>();
+      for (int t = 0; t < threads; t++) {
+        futures.add(pool.submit(new Worker(field, new Random(seed + t), end, ready)));
+      }
+      for (Future<Worker> future : futures) {
+        result.workers.add(future.get());
+      }
+    } finally {
+      pool.shutdown();
+      pool.awaitTermination(1, TimeUnit.MINUTES);
+    }
+    result.seconds = (System.nanoTime() - start) / 1e9;
+    result.gcCount = gcCount() - gcCountBefore;
+    result.gcMillis = gcMillis() - gcMillisBefore;
+    return result;
+  }
+
+  private static int queryType(String name) {
+    for (int i = 0; i < QUERY_TYPES.length; i++) {
+      if (QUERY_TYPES[i].equals(name))
+        return i;
+    }
+    throw new IllegalArgumentException("Unknown query type '" + name + "'");
+  }
+
+  /** The params of a query of the type around the point. */
+  ModifiableSolrParams query(int type, String field, String pt) {
+    ModifiableSolrParams params = new ModifiableSolrParams();
+    String dist = "distDV(" + field + ",\"" + pt + "\")";
+    params.set("rows", Integer.toString(rows));
+    params.set("fl", "id");
+    switch (type) {
+      case 0://sort
+        params.set("q", "*:*");
+        params.set("sort", dist + " asc");
+        break;
+      case 1://recip
+        params.set("q", "{!func score=recipDistance v=" + dist + "}");
+        params.set("fl", "id,score");
+        break;
+      case 2://filter
+        params.set("q", "*:*");
+        params.set("fq", "{!mpdvfilt sfield=" + field + " pt=" + pt + " d=" + filterKm + "}");
+        break;
+      default://nearest
+        params.set("q", "{!mpdvnear sfield=" + field + " pt=" + pt + " k=" + rows + "}");
+        params.set("sort", dist + " asc");
+        break;
+    }
+    return params;
+  }
+
+  private class Worker implements Callable<Worker> {
+    private final String field;
+    private final Random random;
+    private final long end;
+    private final CountDownLatch ready;
+    final LatencyRecorder[] latencies = new LatencyRecorder[QUERY_TYPES.length];
+    long allocatedBytes = -1;//unknown
+
+    Worker(String field, Random random, long end, CountDownLatch ready) {
+      this.field = field;
+      this.random = random;
+      this.end = end;
+      this.ready = ready;
+      for (int i = 0; i < latencies.length; i++) {
+        latencies[i] = new LatencyRecorder();
+      }
+    }
+
+    @Override
+    public Worker call() throws Exception {
+      ready.countDown();
+      ready.await();
+      long allocatedBefore = allocatedBytes();
+      while (System.nanoTime() < end) {
+        int type = nextType();
+        ModifiableSolrParams params = query(type, field, points.nextPoint(random, points.nextCluster(random)));
+        long start = System.nanoTime();
+        try {
+          server.query(params);
+          latencies[type].record(System.nanoTime() - start);
+        } catch (Exception e) {
+          if (latencies[type].getErrors() == 0)
+            System.err.println(QUERY_TYPES[type] + " on " + field + " failed: " + e);
+          latencies[type].recordError();
+        }
+      }
+      long allocatedAfter = allocatedBytes();
+      if (allocatedBefore >= 0 && allocatedAfter >= 0)
+        allocatedBytes = allocatedAfter - allocatedBefore;
+      return this;
+    }
+
+    private int nextType() {
+      double r = random.nextDouble();
+      for (int i = 0; i < mixWeights.length - 1; i++) {
+        if (r < mixWeights[i])
+          return i;
+      }
+      return mixWeights.length - 1;
+    }
+  }
+
+  /** Bytes allocated by the current thread, or -1 if the JVM can't tell. */
+  private static long allocatedBytes() {
+    ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+    if (!(bean instanceof com.sun.management.ThreadMXBean))
+      return -1;
+    return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+  }
+
+  private static long gcCount() {
+    long count = 0;
+    for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+      count += Math.max(0, gc.getCollectionCount());
+    }
+    return count;
+  }
+
+  private static long gcMillis() {
+    long millis = 0;
+    for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+      millis += Math.max(0, gc.getCollectionTime());
+    }
+    return millis;
+  }
+
+  private static class PhaseResult {
+    final List<Worker> workers = new ArrayList<Worker>();
+    double seconds;
+    long gcCount;
+    long gcMillis;
+  }
+
+  private void report(String field, PhaseResult result) {
+    System.out.printf("%n%s: %d threads for %.1fs%n", field, threads, result.seconds);
+    System.out.printf("%-8s %9s %9s %9s %9s %9s %9s %9s %7s%n", "query", "count", "qps", "p50 ms", "p90 ms",
+        "p99 ms", "p99.9 ms", "max ms", "errors");
+    long total = 0;
+    for (int type = 0; type < QUERY_TYPES.length; type++) {
+      List<LatencyRecorder> recorders = new ArrayList<LatencyRecorder>();
+      for (Worker worker : result.workers) {
+        recorders.add(worker.latencies[type]);
+      }
+      LatencyRecorder merged = LatencyRecorder.merge(recorders);
+      if (merged.getCount() == 0 && merged.getErrors() == 0)
+        continue;
+      total += merged.getCount();
+      System.out.printf("%-8s %9d %9.1f %9.2f %9.2f %9.2f %9.2f %9.2f %7d%n", QUERY_TYPES[type],
+          merged.getCount(), merged.getCount() / result.seconds, merged.percentileMillis(50),
+          merged.percentileMillis(90), merged.percentileMillis(99), merged.percentileMillis(99.9),
+          merged.percentileMillis(100), merged.getErrors());
+    }
+    long allocated = 0;
+    for (Worker worker : result.workers) {
+      if (worker.allocatedBytes < 0) {
+        allocated = -1;
+        break;
+      }
+      allocated += worker.allocatedBytes;
+    }
+    System.out.printf("total %.1f qps; GC: %d collections, %d ms (%.1f%% of the time)%n",
+        total / result.seconds, result.gcCount, result.gcMillis, result.gcMillis / (result.seconds * 10));
+    if (allocated >= 0 && total > 0)
+      System.out.printf("allocation: %.1f MB/s, %.1f KB/query (query threads only)%n",
+          allocated / result.seconds / 1048576.0, allocated / 1024.0 / total);
+  }
+}
@@ -0,0 +1,115 @@
+package org.apache.solr.loadtest;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.Random;
+
+/**
+ * Generates clustered geography: documents and query points gather around a
+ * number of cluster centers, like cities, with some clusters much busier than
+ * others. The number of points per document follows a configurable
+ * distribution:
+ * <ul>
+ *   <li>"fixed:N"</li>
+ *   <li>"uniform:MIN:MAX"</li>
+ *   <li>"lognormal:MEDIAN:SIGMA", a long tail like real data</li>
+ * </ul>
+ * Given the same seed, the same points are generated.
+ */
+public class SyntheticPoints {
+
+  /** Above this a flat encoding exceeds the size limit of a binary doc value. */
+  public static final int MAX_POINTS_PER_DOC = 1000;
+
+  private final double[] centerLats;
+  private final double[] centerLons;
+  private final double[] cumulativeWeights;
+  private final double spreadDegrees;
+  private final String distribution;
+  private final double param1;
+  private final double param2;
+
+  /**
+   * @param clusters     the number of cluster centers
+   * @param spreadKm     the standard deviation of points from their center
+   * @param distribution of points per document; see the class doc
+   */
+  public SyntheticPoints(int clusters, double spreadKm, String distribution, long seed) {
+    String[] parts = distribution.split(":");
+    this.distribution = parts[0];
+    if ("fixed".equals(this.distribution) && parts.length == 2) {
+      param1 = Double.parseDouble(parts[1]);
+      param2 = 0;
+    } else if (("uniform".equals(this.distribution) || "lognormal".equals(this.distribution)) && parts.length == 3) {
+      param1 = Double.parseDouble(parts[1]);
+      param2 = Double.parseDouble(parts[2]);
+    } else {
+      throw new IllegalArgumentException("Bad points distribution '" + distribution
+          + "'; expected fixed:N, uniform:MIN:MAX or lognormal:MEDIAN:SIGMA");
+    }
+    if (clusters < 1)
+      throw new IllegalArgumentException("clusters must be positive: " + clusters);
+    this.spreadDegrees = spreadKm / 111.2;
+    Random random = new Random(seed);
+    centerLats = new double[clusters];
+    centerLons = new double[clusters];
+    cumulativeWeights = new double[clusters];
+    double total = 0;
+    for (int i = 0; i < clusters; i++) {
+      centerLats[i] = -55 + random.nextDouble() * 125;//where people live, roughly
+      centerLons[i] = -180 + random.nextDouble() * 360;
+      total += 1.0 / (i + 1);//Zipf: the first cluster is the busiest
+      cumulativeWeights[i] = total;
+    }
+    for (int i = 0; i < clusters; i++) {
+      cumulativeWeights[i] /= total;
+    }
+  }
+
+  /** The number of points of the next document. */
+  public int nextPointCount(Random random) {
+    double count;
+    if ("fixed".equals(distribution))
+      count = param1;
+    else if ("uniform".equals(distribution))
+      count = param1 + random.nextInt((int) (param2 - param1) + 1);
+    else
+      count = param1 * Math.exp(param2 * random.nextGaussian());
+    return (int) Math.max(1, Math.min(MAX_POINTS_PER_DOC, Math.round(count)));
+  }
+
+  /** A cluster, by weight. */
+  public int nextCluster(Random random) {
+    double r = random.nextDouble();
+    for (int i = 0; i < cumulativeWeights.length - 1; i++) {
+      if (r < cumulativeWeights[i])
+        return i;
+    }
+    return cumulativeWeights.length - 1;
+  }
+
+  /** A point near the cluster's center, as "lat,lon". */
+  public String nextPoint(Random random, int cluster) {
+    double lat = centerLats[cluster] + random.nextGaussian() * spreadDegrees;
+    lat = Math.max(-90, Math.min(90, lat));
+    double cos = Math.max(0.01, Math.cos(Math.toRadians(lat)));
+    double lon = centerLons[cluster] + random.nextGaussian() * spreadDegrees / cos;
+    lon = ((lon + 180) % 360 + 360) % 360 - 180;
+    return lat + "," + lon;
+  }
+}
@@ -0,0 +1,369 @@
+package org.apache.lucene.spatial;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import com.spatial4j.core.shape.Rectangle;
+import org.apache.lucene.index.SortedNumericDocValues;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * A reusable cursor over the points encoded by {@link MultiPointEncoding}. The
+ * coordinates are read straight out of the {@link BytesRef} one point at a
+ * time, so iterating doesn't allocate. Not thread-safe; hold one per segment.
+ * <p/>
+ * For {@link MultiPointEncoding#FORMAT_BLOCKED} the bounding box of each block
+ * is available, and {@link #seekBlock(int)} restricts iteration to one block.
+ * <p/>
+ * The cursor can also iterate coordinates that were already decoded into
+ * float arrays, such as a cache holds; see {@link #reset(float[], float[], int, int)}.
+ * Or points stored as Morton codes in SortedNumericDocValues; see
+ * {@link #reset(SortedNumericDocValues, int, int, Rectangle)}.
+ */
+public final class MultiPointCursor {
+
+  private byte[] bytes;
+  private float[] xs;//when iterating decoded coordinates
+  private float[] ys;
+  private SortedNumericDocValues numerics;//when iterating Morton codes
+  private double worldMinX;
+  private double worldMaxX;
+  private double worldMinY;
+  private double worldMaxY;
+  private long visited;//points returned by next(), ever
+  private int start;//of the first point
+  private int end;
+  private int limit;//end of the current block, or end
+  private int offset;//of the next point to read
+
+  private int format;
+  private float minX;
+  private float maxX;
+  private float minY;
+  private float maxY;
+
+  private int size;
+  private int blockSize;
+  private int blockCount;
+  private int blocksOffset;
+
+  //FORMAT_COMPACT state
+  private double scale;
+  private int minQY;
+  private int qx;
+
+  private int index;
+  private float x;
+  private float y;
+
+  //FORMAT_VECTOR state; x & y are decoded from the vector on demand
+  private float vx;
+  private float vy;
+  private float vz;
+  private boolean decodeXY;
+
+  public MultiPointCursor() {
+    reset(new BytesRef());
+  }
+
+  /** Positions the cursor before the first point of {@code ref}. */
+  public MultiPointCursor reset(BytesRef ref) {
+    xs = null;
+    numerics = null;
+    bytes = ref.bytes;
+    start = ref.offset;
+    end = ref.offset + ref.length;
+    format = MultiPointEncoding.readFormat(bytes, ref.offset, ref.length);
+    blockSize = 0;
+    blockCount = 0;
+    if (format != MultiPointEncoding.FORMAT_FLAT && format != MultiPointEncoding.FORMAT_COMPACT) {
+      minX = MultiPointEncoding.readFloat(bytes, start + 1);
+      maxX = MultiPointEncoding.readFloat(bytes, start + 5);
+      minY = MultiPointEncoding.readFloat(bytes, start + 9);
+      maxY = MultiPointEncoding.readFloat(bytes, start + 13);
+    }
+    switch (format) {
+      case MultiPointEncoding.FORMAT_FLAT:
+        size = (end - start) / MultiPointEncoding.POINT_LEN;
+        break;
+      case MultiPointEncoding.FORMAT_BBOX:
+        start += MultiPointEncoding.HEADER_LEN;
+        size = (end - start) / MultiPointEncoding.POINT_LEN;
+        break;
+      case MultiPointEncoding.FORMAT_VECTOR:
+        start += MultiPointEncoding.HEADER_LEN;
+        size = (end - start) / MultiPointEncoding.VECTOR_LEN;
+        break;
+      case MultiPointEncoding.FORMAT_BLOCKED:
+        blockSize = bytes[start + MultiPointEncoding.HEADER_LEN] & 0xFF;
+        size = MultiPointEncoding.readInt(bytes, start + MultiPointEncoding.HEADER_LEN + 1);
+        blockCount = (size + blockSize - 1) / blockSize;
+        blocksOffset = start + MultiPointEncoding.BLOCKED_HEADER_LEN;
+        start = blocksOffset + blockCount * MultiPointEncoding.BBOX_LEN;
+        break;
+      case MultiPointEncoding.FORMAT_COMPACT:
+        scale = MultiPointEncoding.POW10[bytes[start + 1]];
+        offset = start + 2;
+        size = readVInt();
+        int minQX = MultiPointEncoding.unZigZag(readVInt());
+        int maxQX = minQX + readVInt();
+        minQY = MultiPointEncoding.unZigZag(readVInt());
+        int maxQY = minQY + readVInt();
+        //computed just like the points, so they're within it
+        minX = (float) (minQX / scale);
+        maxX = (float) (maxQX / scale);
+        minY = (float) (minQY / scale);
+        maxY = (float) (maxQY / scale);
+        qx = minQX;
+        start = offset;
+        break;
+      default:
+        throw new IllegalStateException("Unknown format " + format
+            + "; was the index written by a newer version?");
+    }
+    limit = end;
+    offset = start;
+    index = -1;
+    decodeXY = false;
+    return this;
+  }
+
+  /**
+   * Positions the cursor before the first of the points with coordinates
+   * {@code xs[from]}, {@code ys[from]} up to {@code to}. They behave like
+   * {@link MultiPointEncoding#FORMAT_FLAT}; there's no bounding box.
+   */
+  public MultiPointCursor reset(float[] xs, float[] ys, int from, int to) {
+    this.xs = xs;
+    this.ys = ys;
+    numerics = null;
+    format = MultiPointEncoding.FORMAT_FLAT;
+    start = from;
+    end = to;
+    size = to - from;
+    blockSize = 0;
+    blockCount = 0;
+    limit = end;
+    offset = start;
+    index = -1;
+    decodeXY = false;
+    return this;
+  }
+
+  /**
+   * Positions the cursor before the values from index {@code from} up to
+   * {@code to} of the current document of {@code values}, which are points
+   * encoded by {@link MultiPointEncoding#toMorton(double, double, Rectangle)}.
+   * {@link #index()} is the index among all the document's values, and
+   * {@link #size()} is the number of them.
+   */
+  public MultiPointCursor reset(SortedNumericDocValues values, int from, int to, Rectangle worldBounds) {
+    xs = null;
+    numerics = values;
+    worldMinX = worldBounds.getMinX();
+    worldMaxX = worldBounds.getMaxX();
+    worldMinY = worldBounds.getMinY();
+    worldMaxY = worldBounds.getMaxY();
+    format = MultiPointEncoding.FORMAT_FLAT;
+    start = from;
+    end = to;
+    size = values.count();
+    blockSize = 0;
+    blockCount = 0;
+    limit = end;
+    offset = start;
+    index = from - 1;
+    decodeXY = false;
+    return this;
+  }
+
+  /**
+   * Advances to the next point, returning false when there are no more (or no
+   * more in the block, following {@link #seekBlock(int)}).
+   */
+  public boolean next() {
+    if (xs != null) {
+      if (offset >= limit)
+        return false;
+      x = xs[offset];
+      y = ys[offset];
+      offset++;
+      index++;
+      visited++;
+      return true;
+    }
+    if (numerics != null) {
+      if (offset >= limit)
+        return false;
+      long value = numerics.valueAt(offset++);
+      x = (float) MultiPointEncoding.mortonToX(value, worldMinX, worldMaxX);
+      y = (float) MultiPointEncoding.mortonToY(value, worldMinY, worldMaxY);
+      index++;
+      visited++;
+      return true;
+    }
+    if (format == MultiPointEncoding.FORMAT_COMPACT)
+      return nextCompact();
+    if (offset >= limit)
+      return false;
+    if (format == MultiPointEncoding.FORMAT_VECTOR) {
+      vx = MultiPointEncoding.readFloat(bytes, offset);
+      vy = MultiPointEncoding.readFloat(bytes, offset + 4);
+      vz = MultiPointEncoding.readFloat(bytes, offset + 8);
+      offset += MultiPointEncoding.VECTOR_LEN;
+      index++;
+      visited++;
+      decodeXY = true;
+      return true;
+    }
+    x = MultiPointEncoding.readFloat(bytes, offset);
+    y = MultiPointEncoding.readFloat(bytes, offset + 4);
+    offset += MultiPointEncoding.POINT_LEN;
+    index++;
+    visited++;
+    return true;
+  }
+
+  private boolean nextCompact() {
+    if (index + 1 >= size)
+      return false;
+    qx += readVInt();
+    x = (float) (qx / scale);
+    y = (float) ((minQY + readVInt()) / scale);
+    index++;
+    visited++;
+    return true;
+  }
+
+  private int readVInt() {
+    byte b = bytes[offset++];
+    int i = b & 0x7F;
+    for (int shift = 7; (b & 0x80) != 0; shift += 7) {
+      b = bytes[offset++];
+      i |= (b & 0x7F) << shift;
+    }
+    return i;
+  }
+
+  /** The number of points returned by {@link #next()} since the cursor was created. */
+  public long getVisited() {
+    return visited;
+  }
+
+  /** The number of points in the current document. */
+  public int size() {
+    return size;
+  }
+
+  public int getFormat() {
+    return format;
+  }
+
+  /**
+   * Whether the encoding carries a bounding box of its points, which is
+   * available as soon as the cursor is reset.
+   */
+  public boolean hasBoundingBox() {
+    return format != MultiPointEncoding.FORMAT_FLAT;
+  }
+
+  public float getMinX() {
+    return minX;
+  }
+
+  public float getMaxX() {
+    return maxX;
+  }
+
+  public float getMinY() {
+    return minY;
+  }
+
+  public float getMaxY() {
+    return maxY;
+  }
+
+  /** The number of blocks; 0 if the format isn't blocked. */
+  public int getBlockCount() {
+    return blockCount;
+  }
+
+  public float getBlockMinX(int block) {
+    return MultiPointEncoding.readFloat(bytes, blocksOffset + block * MultiPointEncoding.BBOX_LEN);
+  }
+
+  public float getBlockMaxX(int block) {
+    return MultiPointEncoding.readFloat(bytes, blocksOffset + block * MultiPointEncoding.BBOX_LEN + 4);
+  }
+
+  public float getBlockMinY(int block) {
+    return MultiPointEncoding.readFloat(bytes, blocksOffset + block * MultiPointEncoding.BBOX_LEN + 8);
+  }
+
+  public float getBlockMaxY(int block) {
+    return MultiPointEncoding.readFloat(bytes, blocksOffset + block * MultiPointEncoding.BBOX_LEN + 12);
+  }
+
+  /** Positions the cursor before the first point of the block; {@link #next()} stops at its end. */
+  public void seekBlock(int block) {
+    assert block >= 0 && block < blockCount;
+    offset = start + block * blockSize * MultiPointEncoding.POINT_LEN;
+    limit = Math.min(end, offset + blockSize * MultiPointEncoding.POINT_LEN);
+    index = block * blockSize - 1;
+  }
+
+  /** The ordinal of the current point, in encoded order. */
+  public int index() {
+    return index;
+  }
+
+  public float getX() {
+    if (decodeXY)
+      decodeXY();
+    return x;
+  }
+
+  public float getY() {
+    if (decodeXY)
+      decodeXY();
+    return y;
+  }
+
+  private void decodeXY() {
+    x = (float) MultiPointEncoding.vectorToX(vx, vy);
+    y = (float) MultiPointEncoding.vectorToY(vz);
+    decodeXY = false;
+  }
+
+  /** Whether the points are unit vectors; see {@link #getVectorX()}. */
+  public boolean isVector() {
+    return format == MultiPointEncoding.FORMAT_VECTOR;
+  }
+
+  /** The x component of the current point's unit vector (requires {@link #isVector()}). */
+  public float getVectorX() {
+    return vx;
+  }
+
+  public float getVectorY() {
+    return vy;
+  }
+
+  public float getVectorZ() {
+    return vz;
+  }
+}
@@ -19,20 +19,78 @@ package org.apache.lucene.spatial;
 
 import com.spatial4j.core.context.SpatialContext;
 import com.spatial4j.core.shape.Point;
+import com.spatial4j.core.shape.Rectangle;
 import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.IntroSorter;
 
-import java.nio.ByteBuffer;
-import java.util.Collections;
+import java.util.Arrays;
 import java.util.Comparator;
 import java.util.List;
 
 /**
  * Responsible for encoding points to bytes, and also to getting the distance to
  * the nearest point from a given point.
+ * <p/>
+ * The original format, {@link #FORMAT_FLAT}, is a plain list of x,y float
+ * pairs. Later formats begin with a marker byte holding the format version
+ * followed by the bounding box of the document's points. The marker's high
+ * nibble is all ones, which as the first byte of a big-endian float would be a
+ * coordinate below -2^97, so it can't be confused with a flat encoding.
+ * Except for {@link #FORMAT_COMPACT}, which has its own header, the box is
+ * four floats.
  */
 public class MultiPointEncoding {
 
-  private static final int POINT_LEN = 4 * 2;
+  /** x,y float pairs; no header. */
+  public static final int FORMAT_FLAT = 0;
+  /** Header with the bounding box, followed by x,y float pairs. */
+  public static final int FORMAT_BBOX = 1;
+  /**
+   * For documents with many points. Header with the bounding box, the block
+   * size and the point count; then the bounding box of each block; then the
+   * x,y float pairs in Z-order, so that each block covers a compact area.
+   */
+  public static final int FORMAT_BLOCKED = 2;
+
+  /**
+   * Fixed-point coordinates, sorted by x and written as variable-length ints:
+   * the x as the delta from the previous point and the y as the offset from
+   * the minimum y. The header holds the precision (decimal places), the point
+   * count and the bounding box, all as variable-length ints.
+   */
+  public static final int FORMAT_COMPACT = 3;
+
+  /**
+   * For geospatial contexts. Header with the bounding box, followed by each
+   * point as an x,y,z float unit vector so that finding the nearest point is
+   * arithmetic, not trigonometry. Sorted by longitude.
+   */
+  public static final int FORMAT_VECTOR = 4;
+
+  /** Decimal places kept by {@link #FORMAT_COMPACT} by default; about a meter. */
+  public static final int DEFAULT_PRECISION = 5;
+  /** The most decimal places {@link #FORMAT_COMPACT} can keep for longitudes (and their deltas) in an int. */
+  public static final int MAX_PRECISION = 6;
+
+  /** Points per block in {@link #FORMAT_BLOCKED}; at most 255. */
+  public static final int DEFAULT_BLOCK_SIZE = 32;
+
+  private static final int MARKER = 0xF0;
+
+  static final int POINT_LEN = 4 * 2;
+  static final int VECTOR_LEN = 4 * 3;
+  /** minX, maxX, minY, maxY */
+  static final int BBOX_LEN = 4 * 4;
+  /** The marker byte and the bounding box. */
+  static final int HEADER_LEN = 1 + BBOX_LEN;
+  /** The header, block size byte and point count int. */
+  static final int BLOCKED_HEADER_LEN = HEADER_LEN + 1 + 4;
+
+  /** Bits per dimension of the Z-order; keeps the curve value within 30 bits. */
+  private static final int ZORDER_BITS = 15;
+
+  /** Bits per dimension of {@link #toMorton(double, double, Rectangle)}. */
+  public static final int MORTON_BITS = 32;
 
   static final Comparator<? super Point> POINT_COMPARATOR = new Comparator<Point>() {
     @Override
@@ -45,20 +103,443 @@ public class MultiPointEncoding {
   };
 
   public static BytesRef pointsToBytes(List<Point> points) {
-    if (points.size() > 1) {
-      Collections.sort(points, POINT_COMPARATOR);
+    return pointsToBytes(points, FORMAT_FLAT);
+  }
+
+  public static BytesRef pointsToBytes(List<Point> points, int format) {
+    return pointsToBytes(points, format, DEFAULT_PRECISION);
+  }
+
+  /**
+   * @param precision decimal places to keep; only used by
+   *                  {@link #FORMAT_COMPACT}.
+   */
+  public static BytesRef pointsToBytes(List<Point> points, int format, int precision) {
+    double[] xy = new double[points.size() * 2];
+    for (int i = 0; i < points.size(); i++) {
+      xy[i * 2] = points.get(i).getX();
+      xy[i * 2 + 1] = points.get(i).getY();
     }
-    BytesRef bytes = new BytesRef(points.size() * POINT_LEN);
+    return pointsToBytes(xy, points.size(), format, precision);
+  }
+
+  /**
+   * Encodes the first {@code count} x,y pairs of {@code xy}, which is
+   * reordered in the process. No objects are created per point, so callers
+   * encoding many documents can reuse one buffer.
+   *
+   * @param precision decimal places to keep; only used by
+   *                  {@link #FORMAT_COMPACT}.
+   */
+  public static BytesRef pointsToBytes(double[] xy, int count, int format, int precision) {
+    assert xy.length >= count * 2;
+    if (count == 0)
+      format = FORMAT_FLAT;//no box to speak of
+    switch (format) {
+      case FORMAT_FLAT:
+      case FORMAT_BBOX:
+        sortPairs(xy, count);
+        BytesRef bytes = new BytesRef((format == FORMAT_FLAT ? 0 : HEADER_LEN) + count * POINT_LEN);
+        int offset = 0;
+        if (format != FORMAT_FLAT) {
+          bytes.bytes[offset++] = (byte) (MARKER | format);
+          offset += writeBoundingBox(xy, 0, count, bytes.bytes, offset);
+        }
+        offset += writePoints(xy, count, bytes.bytes, offset);
+        bytes.length = bytes.bytes.length;
+        assert offset == bytes.length;
+        return bytes;
+      case FORMAT_BLOCKED:
+        return pointsToBlockedBytes(xy, count, DEFAULT_BLOCK_SIZE);
+      case FORMAT_VECTOR:
+        return pointsToVectorBytes(xy, count);
+      case FORMAT_COMPACT:
+        BytesRef compact = pointsToCompactBytes(xy, count, precision);
+        //very small documents are smaller without the header
+        if (compact.length >= count * POINT_LEN)
+          return pointsToBytes(xy, count, FORMAT_FLAT, precision);
+        return compact;
+      default:
+        throw new IllegalArgumentException("Unknown format: " + format);
+    }
+  }
+
+  private static BytesRef pointsToBlockedBytes(double[] xy, int count, int blockSize) {
+    assert blockSize > 0 && blockSize <= 255;
+    sortByZOrder(xy, count);
+    final int numBlocks = (count + blockSize - 1) / blockSize;
+    BytesRef bytes = new BytesRef(BLOCKED_HEADER_LEN + numBlocks * BBOX_LEN + count * POINT_LEN);
     int offset = 0;
-    for (Point point : points) {
-      offset += writeFloat(point.getX(), bytes.bytes, offset);
-      offset += writeFloat(point.getY(), bytes.bytes, offset);
+    bytes.bytes[offset++] = (byte) (MARKER | FORMAT_BLOCKED);
+    offset += writeBoundingBox(xy, 0, count, bytes.bytes, offset);
+    bytes.bytes[offset++] = (byte) blockSize;
+    writeInt(count, bytes.bytes, offset);
+    offset += 4;
+    for (int i = 0; i < count; i += blockSize) {
+      offset += writeBoundingBox(xy, i, Math.min(count, i + blockSize), bytes.bytes, offset);
+    }
+    offset += writePoints(xy, count, bytes.bytes, offset);
+    bytes.length = bytes.bytes.length;
+    assert offset == bytes.length;
+    return bytes;
+  }
+
+  private static BytesRef pointsToVectorBytes(double[] xy, int count) {
+    sortPairs(xy, count);
+    BytesRef bytes = new BytesRef(HEADER_LEN + count * VECTOR_LEN);
+    int offset = HEADER_LEN;//box goes in last
+    //the box is of the positions the stored vectors decode to, so that it's
+    // consistent with the distances calculated from them
+    double minX = Double.POSITIVE_INFINITY, maxX = Double.NEGATIVE_INFINITY;
+    double minY = Double.POSITIVE_INFINITY, maxY = Double.NEGATIVE_INFINITY;
+    for (int i = 0; i < count; i++) {
+      double lon = Math.toRadians(xy[i * 2]);
+      double lat = Math.toRadians(xy[i * 2 + 1]);
+      float vx = (float) (Math.cos(lat) * Math.cos(lon));
+      float vy = (float) (Math.cos(lat) * Math.sin(lon));
+      float vz = (float) Math.sin(lat);
+      offset += writeFloat(vx, bytes.bytes, offset);
+      offset += writeFloat(vy, bytes.bytes, offset);
+      offset += writeFloat(vz, bytes.bytes, offset);
+      double x = vectorToX(vx, vy);
+      double y = vectorToY(vz);
+      minX = Math.min(minX, x);
+      maxX = Math.max(maxX, x);
+      minY = Math.min(minY, y);
+      maxY = Math.max(maxY, y);
     }
+    bytes.bytes[0] = (byte) (MARKER | FORMAT_VECTOR);
+    //rounded outwards
+    writeFloat(Math.nextAfter((float) minX, Double.NEGATIVE_INFINITY), bytes.bytes, 1);
+    writeFloat(Math.nextAfter((float) maxX, Double.POSITIVE_INFINITY), bytes.bytes, 5);
+    writeFloat(Math.nextAfter((float) minY, Double.NEGATIVE_INFINITY), bytes.bytes, 9);
+    writeFloat(Math.nextAfter((float) maxY, Double.POSITIVE_INFINITY), bytes.bytes, 13);
     bytes.length = bytes.bytes.length;
     assert offset == bytes.length;
     return bytes;
   }
 
+  /** The longitude, in degrees, of a unit vector. */
+  static double vectorToX(double vx, double vy) {
+    return Math.toDegrees(Math.atan2(vy, vx));
+  }
+
+  /** The latitude, in degrees, of a unit vector. */
+  static double vectorToY(double vz) {
+    return Math.toDegrees(Math.asin(Math.max(-1, Math.min(1, vz))));
+  }
+
+  private static BytesRef pointsToCompactBytes(double[] xy, int count, int precision) {
+    if (precision < 0 || precision > MAX_PRECISION)
+      throw new IllegalArgumentException("precision must be between 0 and " + MAX_PRECISION + ": " + precision);
+    final double scale = POW10[precision];
+    final int[] qs = new int[count * 2];//x y pair order
+    for (int i = 0; i < qs.length; i++) {
+      qs[i] = toFixedPoint(xy[i], scale);
+    }
+    sortPairs(qs);
+    int minQY = Integer.MAX_VALUE, maxQY = Integer.MIN_VALUE;
+    for (int i = 1; i < qs.length; i += 2) {
+      minQY = Math.min(minQY, qs[i]);
+      maxQY = Math.max(maxQY, qs[i]);
+    }
+    final int minQX = qs[0];
+    final int maxQX = qs[qs.length - 2];
+
+    //header: 1 + precision + 5 vints; points: 2 vints each
+    byte[] buf = new byte[2 + 5 * 5 + count * 2 * 5];
+    int offset = 0;
+    buf[offset++] = (byte) (MARKER | FORMAT_COMPACT);
+    buf[offset++] = (byte) precision;
+    offset = writeVInt(count, buf, offset);
+    offset = writeVInt(zigZag(minQX), buf, offset);
+    offset = writeVInt(maxQX - minQX, buf, offset);
+    offset = writeVInt(zigZag(minQY), buf, offset);
+    offset = writeVInt(maxQY - minQY, buf, offset);
+    int prevQX = minQX;
+    for (int i = 0; i < qs.length; i += 2) {
+      offset = writeVInt(qs[i] - prevQX, buf, offset);
+      offset = writeVInt(qs[i + 1] - minQY, buf, offset);
+      prevQX = qs[i];
+    }
+    return new BytesRef(Arrays.copyOf(buf, offset));
+  }
+
+  static final double[] POW10 = {1, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6};
+
+  private static int toFixedPoint(double v, double scale) {
+    long q = Math.round(v * scale);
+    if (q > Integer.MAX_VALUE / 2 || q < Integer.MIN_VALUE / 2)//leave room for deltas
+      throw new IllegalArgumentException("Coordinate " + v + " is too large for precision " + Math.log10(scale));
+    return (int) q;
+  }
+
+  /** Sorts x,y pairs by x then y. */
+  private static void sortPairs(int[] qs) {
+    long[] keys = new long[qs.length / 2];
+    for (int i = 0; i < keys.length; i++) {
+      //y's sign bit is flipped so that its signed order survives as the unsigned low bits
+      keys[i] = ((long) qs[i * 2] << 32) | ((qs[i * 2 + 1] ^ Integer.MIN_VALUE) & 0xFFFFFFFFL);
+    }
+    Arrays.sort(keys);
+    for (int i = 0; i < keys.length; i++) {
+      qs[i * 2] = (int) (keys[i] >> 32);
+      qs[i * 2 + 1] = (int) keys[i] ^ Integer.MIN_VALUE;
+    }
+  }
+
+  /** Sorts the first count x,y pairs by x then y, as {@link #POINT_COMPARATOR} does. */
+  private static void sortPairs(final double[] xy, int count) {
+    if (count < 2)
+      return;
+    new IntroSorter() {
+      double pivotX;
+      double pivotY;
+
+      @Override
+      protected int compare(int i, int j) {
+        int result = Double.compare(xy[i * 2], xy[j * 2]);
+        return result != 0 ? result : Double.compare(xy[i * 2 + 1], xy[j * 2 + 1]);
+      }
+
+      @Override
+      protected void swap(int i, int j) {
+        swapPairs(xy, i, j);
+      }
+
+      @Override
+      protected void setPivot(int i) {
+        pivotX = xy[i * 2];
+        pivotY = xy[i * 2 + 1];
+      }
+
+      @Override
+      protected int comparePivot(int j) {
+        int result = Double.compare(pivotX, xy[j * 2]);
+        return result != 0 ? result : Double.compare(pivotY, xy[j * 2 + 1]);
+      }
+    }.sort(0, count);
+  }
+
+  private static void swapPairs(double[] xy, int i, int j) {
+    double tmp = xy[i * 2];
+    xy[i * 2] = xy[j * 2];
+    xy[j * 2] = tmp;
+    tmp = xy[i * 2 + 1];
+    xy[i * 2 + 1] = xy[j * 2 + 1];
+    xy[j * 2 + 1] = tmp;
+  }
+
+  static int zigZag(int i) {
+    return (i >> 31) ^ (i << 1);
+  }
+
+  static int unZigZag(int i) {
+    return (i >>> 1) ^ -(i & 1);
+  }
+
+  private static int writeVInt(int i, byte[] bytes, int offset) {
+    while ((i & ~0x7F) != 0) {
+      bytes[offset++] = (byte) ((i & 0x7F) | 0x80);
+      i >>>= 7;
+    }
+    bytes[offset++] = (byte) i;
+    return offset;
+  }
+
+  /** Orders the first count x,y pairs along a Z-order curve over their bounding box. */
+  private static void sortByZOrder(final double[] xy, int count) {
+    double minX = Double.POSITIVE_INFINITY, maxX = Double.NEGATIVE_INFINITY;
+    double minY = Double.POSITIVE_INFINITY, maxY = Double.NEGATIVE_INFINITY;
+    for (int i = 0; i < count; i++) {
+      minX = Math.min(minX, xy[i * 2]);
+      maxX = Math.max(maxX, xy[i * 2]);
+      minY = Math.min(minY, xy[i * 2 + 1]);
+      maxY = Math.max(maxY, xy[i * 2 + 1]);
+    }
+    //the curve value in the high bits, the original index in the low ones, for a stable order
+    final long[] keys = new long[count];
+    for (int i = 0; i < count; i++) {
+      long z = interleave(quantize(xy[i * 2], minX, maxX, ZORDER_BITS), quantize(xy[i * 2 + 1], minY, maxY, ZORDER_BITS));
+      keys[i] = (z << 32) | i;
+    }
+    new IntroSorter() {
+      long pivot;
+
+      @Override
+      protected int compare(int i, int j) {
+        return Long.compare(keys[i], keys[j]);
+      }
+
+      @Override
+      protected void swap(int i, int j) {
+        long tmp = keys[i];
+        keys[i] = keys[j];
+        keys[j] = tmp;
+        swapPairs(xy, i, j);
+      }
+
+      @Override
+      protected void setPivot(int i) {
+        pivot = keys[i];
+      }
+
+      @Override
+      protected int comparePivot(int j) {
+        return Long.compare(pivot, keys[j]);
+      }
+    }.sort(0, count);
+  }
+
+  /**
+   * Removes duplicates from the first count x,y pairs, which are left sorted,
+   * returning the new count.
+   */
+  public static int dedupPairs(double[] xy, int count) {
+    sortPairs(xy, count);
+    int upto = Math.min(count, 1);
+    for (int i = 1; i < count; i++) {
+      if (xy[i * 2] != xy[(upto - 1) * 2] || xy[i * 2 + 1] != xy[(upto - 1) * 2 + 1]) {
+        xy[upto * 2] = xy[i * 2];
+        xy[upto * 2 + 1] = xy[i * 2 + 1];
+        upto++;
+      }
+    }
+    return upto;
+  }
+
+  /**
+   * Rounds the first count x,y pairs to the nearest multiple of {@code step}
+   * in each dimension; for geospatial points, keeping them within the globe.
+   */
+  public static void snapPairs(double[] xy, int count, double step, boolean geo) {
+    for (int i = 0; i < count * 2; i += 2) {
+      double x = Math.round(xy[i] / step) * step;
+      double y = Math.round(xy[i + 1] / step) * step;
+      if (geo) {
+        x = Math.max(-180, Math.min(180, x));
+        y = Math.max(-90, Math.min(90, y));
+      }
+      xy[i] = x;
+      xy[i + 1] = y;
+    }
+  }
+
+  /**
+   * Reduces the first count x,y pairs to at most {@code max} by keeping points
+   * evenly spaced along a Z-order curve, so that they stay spread over the
+   * original area. Returns the new count.
+   */
+  public static int thinPairs(double[] xy, int count, int max) {
+    if (count <= max)
+      return count;
+    sortByZOrder(xy, count);
+    for (int i = 0; i < max; i++) {
+      int from = (int) ((long) i * count / max);//>= i, so not yet overwritten
+      xy[i * 2] = xy[from * 2];
+      xy[i * 2 + 1] = xy[from * 2 + 1];
+    }
+    return max;
+  }
+
+  /**
+   * Encodes a point as a 64-bit Morton (Z-order) code, for storage as one of
+   * a document's SortedNumericDocValues. Each dimension is quantized to
+   * {@link #MORTON_BITS} bits over the world bounds. The sign bit is flipped
+   * so that the signed order of the values is the order along the curve; so
+   * the points within a box have values between those of its corners.
+   */
+  public static long toMorton(double x, double y, Rectangle worldBounds) {
+    return interleave(quantize(x, worldBounds.getMinX(), worldBounds.getMaxX(), MORTON_BITS),
+        quantize(y, worldBounds.getMinY(), worldBounds.getMaxY(), MORTON_BITS)) ^ Long.MIN_VALUE;
+  }
+
+  /** The x of a point encoded by {@link #toMorton(double, double, Rectangle)}. */
+  static double mortonToX(long value, double minX, double maxX) {
+    return unquantize(compact(value ^ Long.MIN_VALUE), minX, maxX, MORTON_BITS);
+  }
+
+  static double mortonToY(long value, double minY, double maxY) {
+    return unquantize(compact((value ^ Long.MIN_VALUE) >>> 1), minY, maxY, MORTON_BITS);
+  }
+
+  private static double unquantize(int q, double min, double max, int bits) {
+    long maxQ = (1L << bits) - 1;
+    return min + (q & 0xFFFFFFFFL) * (max - min) / maxQ;
+  }
+
+  /** Maps v in [min, max] onto an unsigned integer of the given number of bits. */
+  static int quantize(double v, double min, double max, int bits) {
+    if (max <= min)
+      return 0;
+    long maxQ = (1L << bits) - 1;
+    long q = (long) ((v - min) / (max - min) * maxQ);
+    return (int) Math.max(0, Math.min(maxQ, q));
+  }
+
+  /** Interleaves the bits of two unsigned ints; x takes the even bits. */
+  static long interleave(int x, int y) {
+    return spread(x) | (spread(y) << 1);
+  }
+
+  /** The inverse of spread: gathers the even bits. */
+  private static int compact(long x) {
+    x &= 0x5555555555555555L;
+    x = (x | (x >>> 1)) & 0x3333333333333333L;
+    x = (x | (x >>> 2)) & 0x0F0F0F0F0F0F0F0FL;
+    x = (x | (x >>> 4)) & 0x00FF00FF00FF00FFL;
+    x = (x | (x >>> 8)) & 0x0000FFFF0000FFFFL;
+    x = (x | (x >>> 16)) & 0x00000000FFFFFFFFL;
+    return (int) x;
+  }
+
+  private static long spread(int v) {
+    long x = v & 0xFFFFFFFFL;
+    x = (x | (x << 16)) & 0x0000FFFF0000FFFFL;
+    x = (x | (x << 8)) & 0x00FF00FF00FF00FFL;
+    x = (x | (x << 4)) & 0x0F0F0F0F0F0F0F0FL;
+    x = (x | (x << 2)) & 0x3333333333333333L;
+    x = (x | (x << 1)) & 0x5555555555555555L;
+    return x;
+  }
+
+  private static int writePoints(double[] xy, int count, byte[] bytes, int offset) {
+    final int start = offset;
+    for (int i = 0; i < count * 2; i++) {
+      offset += writeFloat(xy[i], bytes, offset);
+    }
+    return offset - start;
+  }
+
+  /** Writes the bounding box of the pairs from index {@code from} up to {@code to}. */
+  private static int writeBoundingBox(double[] xy, int from, int to, byte[] bytes, int offset) {
+    float minX = Float.POSITIVE_INFINITY, maxX = Float.NEGATIVE_INFINITY;
+    float minY = Float.POSITIVE_INFINITY, maxY = Float.NEGATIVE_INFINITY;
+    for (int i = from; i < to; i++) {
+      minX = Math.min(minX, (float) xy[i * 2]);
+      maxX = Math.max(maxX, (float) xy[i * 2]);
+      minY = Math.min(minY, (float) xy[i * 2 + 1]);
+      maxY = Math.max(maxY, (float) xy[i * 2 + 1]);
+    }
+    writeFloat(minX, bytes, offset);
+    writeFloat(maxX, bytes, offset + 4);
+    writeFloat(minY, bytes, offset + 8);
+    writeFloat(maxY, bytes, offset + 12);
+    return BBOX_LEN;
+  }
+
+  /** The format of the encoded points, which needn't be positioned at a point. */
+  public static int readFormat(BytesRef bytes) {
+    return readFormat(bytes.bytes, bytes.offset, bytes.length);
+  }
+
+  static int readFormat(byte[] bytes, int offset, int length) {
+    if (length == 0)
+      return FORMAT_FLAT;
+    int b = bytes[offset] & 0xFF;
+    return (b & MARKER) == MARKER ? b & ~MARKER : FORMAT_FLAT;
+  }
+
   private static int writeFloat(double vDbl, byte[] bytes, int offset) {
     //ported from DataOutputStream.writeFloat()
     writeInt(Float.floatToIntBits((float) vDbl), bytes, offset);
@@ -72,33 +553,31 @@ public class MultiPointEncoding {
     bytes[offset + 3] = (byte) ((v >>> 0) & 0xFF);
   }
 
+  /**
+   * Convenience for a one-off distance calculation. Code calculating the
+   * distance for many documents should hold a {@link NearestPointFinder}
+   * instead.
+   */
   public static double calcDistance(Point point, BytesRef bytes, SpatialContext ctx) {
-    float[] floats = bytesToFloats(bytes);//x y pair order
-    double minDist = Double.MAX_VALUE;
-    for (int i = 0; i < floats.length; i += 2) {
-      float x = floats[i];
-      float y = floats[i + 1];
-      double dist = ctx.getDistCalc().distance(point, x, y);
-      minDist = Math.min(minDist, dist);
-    }
-    return minDist;
+    return new NearestPointFinder(point, ctx).minDistance(bytes);
   }
 
   static float[] bytesToFloats(BytesRef bytes) {
-    float[] floats = new float[bytes.length / POINT_LEN * 2];
-    for (int i = 0; i < floats.length; i++) {
-      floats[i] = readFloat(bytes.bytes, bytes.offset + i * 4);
+    MultiPointCursor cursor = new MultiPointCursor().reset(bytes);
+    float[] floats = new float[cursor.size() * 2];
+    int i = 0;
+    while (cursor.next()) {
+      floats[i++] = cursor.getX();
+      floats[i++] = cursor.getY();
     }
     return floats;
   }
 
-  private static float readFloat(byte[] bytes, int offset) {
+  static float readFloat(byte[] bytes, int offset) {
     return Float.intBitsToFloat(readInt(bytes, offset));
   }
 
-  private static int readInt(byte[] bytes, int offset) {
-    ByteBuffer bb = ByteBuffer.wrap(bytes, offset, 4);
-    bb.getInt();
+  static int readInt(byte[] bytes, int offset) {
     //ported from DataInputStream.readInt()
     int ch1 = bytes[offset + 0] & 0xff;
     int ch2 = bytes[offset + 1] & 0xff;
@@ -0,0 +1,639 @@
+package org.apache.lucene.spatial;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import com.spatial4j.core.context.SpatialContext;
+import com.spatial4j.core.distance.CartesianDistCalc;
+import com.spatial4j.core.distance.DistanceCalculator;
+import com.spatial4j.core.distance.GeodesicSphereDistCalc;
+import com.spatial4j.core.shape.Point;
+import com.spatial4j.core.shape.Rectangle;
+import org.apache.lucene.index.SortedNumericDocValues;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.RamUsageEstimator;
+
+/**
+ * Finds the distance from one or more origins to the nearest of a document's
+ * encoded points. The instance and its {@link MultiPointCursor} are reused
+ * from document to document so that no garbage is created per document. Not
+ * thread-safe; hold one per segment.
+ * <p/>
+ * With several origins, the result is the smallest distance over all origin
+ * and point pairs. Each point is decoded once and compared with every origin.
+ * <p/>
+ * Given a maximum distance of interest (e.g. the current bottom of a sort, or
+ * a filter radius), {@link #minDistance(BytesRef, double)} compares points
+ * against a box around each origin to skip the distance calculation for points
+ * that can't be within it. If the encoding carries a bounding box then a
+ * document that can't be within it is skipped without looking at its points.
+ * <p/>
+ * Documents in {@link MultiPointEncoding#FORMAT_BLOCKED} are searched starting
+ * with the block nearest an origin; the remaining blocks are skipped when
+ * their bounding box shows they can't hold a nearer point.
+ * <p/>
+ * Documents in {@link MultiPointEncoding#FORMAT_VECTOR} are searched for the
+ * smallest chord to the origin's unit vector (equivalent to the largest dot
+ * product), which is only arithmetic; the chord is converted to the great
+ * circle distance once, for the nearest point.
+ * <p/>
+ * Optionally, points are compared using a cheap equirectangular approximation
+ * instead of the {@link DistanceCalculator}; the calculator is then only used
+ * for the point found to be nearest, so the distance returned is exact for that
+ * point. Near the poles, or for points far apart, the approximation might pick
+ * a point that isn't quite the nearest.
+ */
+public class NearestPointFinder {
+
+  /** Slack, in degrees, added around the box to absorb rounding. */
+  private static final double BOX_SLACK = 1e-6;
+
+  private final Point[] origins;
+  private final DistanceCalculator distCalc;
+  private final Rectangle worldBounds;
+  private final MultiPointCursor cursor = new MultiPointCursor();
+  private float[] proxies = new float[0];//scratch for approximations of decoded coordinates
+  private long kernelScanned;//points approximated there, rather than through the cursor
+
+  private final boolean geo;
+  private final boolean boxable;
+  private final boolean squared;
+  private final boolean approximate;
+  private final double[] cosOriginY;//for approximations
+  //the origins as unit vectors, for FORMAT_VECTOR
+  private final double[] originVX;
+  private final double[] originVY;
+  private final double[] originVZ;
+
+  //a box around each origin that contains every point within boxDistance
+  private double boxDistance = Double.NaN;
+  private final double[] boxHalfWidth;
+  private final double[] boxMinY;
+  private final double[] boxMaxY;
+
+  //details of the nearest point found by the last call to minDistance
+  private int nearestIndex = -1;
+  private int nearestOrigin = -1;
+  private double nearestApprox;//when approximate
+  private float nearestX;
+  private float nearestY;
+  private boolean nearestIsVector;
+  private float nearestVX;
+  private float nearestVY;
+  private float nearestVZ;
+
+  public NearestPointFinder(Point origin, SpatialContext ctx) {
+    this(new Point[]{origin}, ctx);
+  }
+
+  public NearestPointFinder(Point[] origins, SpatialContext ctx) {
+    this(origins, ctx, false);
+  }
+
+  /**
+   * @param approximate compare points with an equirectangular approximation,
+   *                    calculating the distance only for the nearest
+   */
+  public NearestPointFinder(Point[] origins, SpatialContext ctx, boolean approximate) {
+    if (origins.length == 0)
+      throw new IllegalArgumentException("At least one origin is required");
+    this.origins = origins.clone();
+    this.distCalc = ctx.getDistCalc();
+    this.worldBounds = ctx.getWorldBounds();
+    this.geo = ctx.isGeo();
+    if (geo) {
+      boxable = distCalc instanceof GeodesicSphereDistCalc;
+      squared = false;
+    } else {
+      boxable = distCalc instanceof CartesianDistCalc;
+      //"cartesian^2" yields the squared distance
+      squared = boxable && distCalc.distance(origins[0], origins[0].getX() + 2, origins[0].getY()) > 3;
+    }
+    //in a non-geo cartesian context there's nothing to gain
+    this.approximate = approximate && geo;
+    final int n = origins.length;
+    cosOriginY = new double[n];
+    originVX = new double[n];
+    originVY = new double[n];
+    originVZ = new double[n];
+    boxHalfWidth = new double[n];
+    boxMinY = new double[n];
+    boxMaxY = new double[n];
+    for (int o = 0; o < n; o++) {
+      double lon = Math.toRadians(origins[o].getX());
+      double lat = Math.toRadians(origins[o].getY());
+      cosOriginY[o] = geo ? Math.cos(lat) : 1;
+      originVX[o] = Math.cos(lat) * Math.cos(lon);
+      originVY[o] = Math.cos(lat) * Math.sin(lon);
+      originVZ[o] = Math.sin(lat);
+    }
+  }
+
+  /**
+   * Returns the distance to the nearest point, or {@link Double#MAX_VALUE} if
+   * there are no points.
+   */
+  public double minDistance(BytesRef bytes) {
+    return minDistance(bytes, Double.MAX_VALUE);
+  }
+
+  /**
+   * Returns the distance to the nearest point if it is within
+   * {@code maxDistance}. Otherwise the result is some value greater than
+   * {@code maxDistance}; {@link Double#POSITIVE_INFINITY} if the points were
+   * pruned without calculating their distance.
+   */
+  public double minDistance(BytesRef bytes, double maxDistance) {
+    cursor.reset(bytes);
+    return minDistance(maxDistance);
+  }
+
+  /**
+   * Like {@link #minDistance(BytesRef, double)} for decoded coordinates; see
+   * {@link MultiPointCursor#reset(float[], float[], int, int)}. When
+   * approximating, all the points are compared by {@link #equirectangular},
+   * which the JIT can vectorize, and nothing is pruned.
+   */
+  public double minDistance(float[] xs, float[] ys, int from, int to, double maxDistance) {
+    if (approximate)
+      return minDistanceApproximately(xs, ys, from, to);
+    cursor.reset(xs, ys, from, to);
+    return minDistance(maxDistance);
+  }
+
+  private double minDistanceApproximately(float[] xs, float[] ys, int from, int to) {
+    nearestIndex = -1;
+    nearestOrigin = -1;
+    nearestIsVector = false;
+    final int n = to - from;
+    if (n == 0)
+      return Double.MAX_VALUE;
+    if (proxies.length < n)
+      proxies = new float[ArrayUtil.oversize(n, RamUsageEstimator.NUM_BYTES_FLOAT)];
+    kernelScanned += n;
+    float minProxy = Float.POSITIVE_INFINITY;
+    for (int o = 0; o < origins.length; o++) {
+      final float originX = (float) origins[o].getX();
+      final float originY = (float) origins[o].getY();
+      final float cos = (float) cosOriginY[o];
+      //directly, then the other way around the world
+      for (int pass = 0; pass < 2; pass++) {
+        final float x = pass == 0 ? originX : (originX > 0 ? originX - 360 : originX + 360);
+        equirectangular(xs, ys, from, n, x, originY, cos, proxies);
+        final int i = argMin(proxies, n);
+        if (proxies[i] < minProxy) {
+          minProxy = proxies[i];
+          nearestIndex = i;
+          nearestOrigin = o;
+        }
+      }
+    }
+    nearestX = xs[from + nearestIndex];
+    nearestY = ys[from + nearestIndex];
+    return distCalc.distance(origins[nearestOrigin], nearestX, nearestY);
+  }
+
+  /**
+   * Sets {@code out[i]} to the squared equirectangular distance between the
+   * origin and point {@code from + i}, without wrapping around the world.
+   * It's free of branches and the coordinates are in separate arrays so that
+   * the JIT can vectorize the loop.
+   */
+  static void equirectangular(float[] xs, float[] ys, int from, int n, float originX, float originY, float cos,
+                              float[] out) {
+    for (int i = 0; i < n; i++) {
+      final float dx = (xs[from + i] - originX) * cos;
+      final float dy = ys[from + i] - originY;
+      out[i] = dx * dx + dy * dy;
+    }
+  }
+
+  /** The index of the smallest of the first {@code n} values; {@code n > 0}. */
+  static int argMin(float[] values, int n) {
+    int min = 0;
+    for (int i = 1; i < n; i++) {
+      if (values[i] < values[min])
+        min = i;
+    }
+    return min;
+  }
+
+  /**
+   * Like {@link #minDistance(BytesRef, double)} for points stored as Morton
+   * codes; {@code values} must be positioned on the document. Only the values
+   * between the codes of the corners of the box around the origins are read.
+   */
+  public double minDistance(SortedNumericDocValues values, double maxDistance) {
+    resetMorton(values, boxable && maxDistance < Double.MAX_VALUE ? maxDistance : Double.NaN);
+    return minDistance(maxDistance);
+  }
+
+  /** Like {@link #anyWithin(BytesRef, double)} for points stored as Morton codes. */
+  public boolean anyWithin(SortedNumericDocValues values, double distance) {
+    resetMorton(values, boxable ? distance : Double.NaN);
+    return anyWithin(distance);
+  }
+
+  /** Resets the cursor to the values that might be within {@code distance} (if not NaN). */
+  private void resetMorton(SortedNumericDocValues values, double distance) {
+    final int count = values.count();
+    int from = 0;
+    int to = count;
+    if (!Double.isNaN(distance) && count > 0) {
+      setBoxDistance(distance);
+      long minValue = Long.MAX_VALUE;
+      long maxValue = Long.MIN_VALUE;
+      for (int o = 0; o < origins.length; o++) {
+        double minX = origins[o].getX() - boxHalfWidth[o];
+        double maxX = origins[o].getX() + boxHalfWidth[o];
+        if (minX < worldBounds.getMinX() || maxX > worldBounds.getMaxX()) {
+          if (geo) {//wraps around; could be anywhere
+            minValue = Long.MIN_VALUE;
+            maxValue = Long.MAX_VALUE;
+            break;
+          }
+          minX = Math.max(minX, worldBounds.getMinX());
+          maxX = Math.min(maxX, worldBounds.getMaxX());
+        }
+        double minY = Math.max(boxMinY[o], worldBounds.getMinY());
+        double maxY = Math.min(boxMaxY[o], worldBounds.getMaxY());
+        if (minX > maxX || minY > maxY)
+          continue;//outside the world
+        minValue = Math.min(minValue, MultiPointEncoding.toMorton(minX, minY, worldBounds));
+        maxValue = Math.max(maxValue, MultiPointEncoding.toMorton(maxX, maxY, worldBounds));
+      }
+      from = lowerBound(values, 0, count, minValue);
+      to = maxValue == Long.MAX_VALUE ? count : lowerBound(values, from, count, maxValue + 1);
+    }
+    cursor.reset(values, from, to, worldBounds);
+  }
+
+  /** The first index in [from, to) with a value >= target, or to. */
+  private static int lowerBound(SortedNumericDocValues values, int from, int to, long target) {
+    int lo = from;
+    int hi = to;
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if (values.valueAt(mid) < target)
+        lo = mid + 1;
+      else
+        hi = mid;
+    }
+    return lo;
+  }
+
+  private double minDistance(double maxDistance) {
+    final MultiPointCursor cursor = this.cursor;
+    nearestIndex = -1;
+    nearestOrigin = -1;
+    nearestApprox = Double.MAX_VALUE;
+    nearestIsVector = false;
+    final boolean prune = boxable && maxDistance < Double.MAX_VALUE;
+    if (prune) {
+      setBoxDistance(maxDistance);
+      if (cursor.hasBoundingBox()
+          && !boxIntersects(cursor.getMinX(), cursor.getMaxX(), cursor.getMinY(), cursor.getMaxY())) {
+        return Double.POSITIVE_INFINITY;
+      }
+    }
+    double minDist;
+    if (cursor.isVector())
+      return scanVectors();
+    else if (cursor.getBlockCount() > 0)
+      minDist = scanBlocks(maxDistance);
+    else
+      minDist = scan(prune, Double.MAX_VALUE);
+    if (prune && nearestIndex == -1)
+      return Double.POSITIVE_INFINITY;
+    return minDist;
+  }
+
+  /**
+   * Whether any point is within {@code distance}; stops at the first one found.
+   * The nearest-point details are not maintained.
+   */
+  public boolean anyWithin(BytesRef bytes, double distance) {
+    cursor.reset(bytes);
+    return anyWithin(distance);
+  }
+
+  /** Like {@link #anyWithin(BytesRef, double)} for decoded coordinates. */
+  public boolean anyWithin(float[] xs, float[] ys, int from, int to, double distance) {
+    cursor.reset(xs, ys, from, to);
+    return anyWithin(distance);
+  }
+
+  private boolean anyWithin(double distance) {
+    final MultiPointCursor cursor = this.cursor;
+    nearestIndex = -1;
+    nearestOrigin = -1;
+    nearestIsVector = false;
+    if (boxable) {
+      setBoxDistance(distance);
+      if (cursor.hasBoundingBox()
+          && !boxIntersects(cursor.getMinX(), cursor.getMaxX(), cursor.getMinY(), cursor.getMaxY()))
+        return false;
+    }
+    if (cursor.isVector()) {
+      if (distance >= 180)
+        return cursor.size() > 0;
+      double halfChord = Math.sin(Math.toRadians(distance) / 2);
+      double maxChordSq = 4 * halfChord * halfChord;
+      while (cursor.next()) {
+        for (int o = 0; o < origins.length; o++) {
+          if (chordSq(o) <= maxChordSq)
+            return true;
+        }
+      }
+      return false;
+    }
+    final int blockCount = cursor.getBlockCount();
+    for (int block = 0; block < Math.max(1, blockCount); block++) {
+      if (blockCount > 0) {
+        if (boxable && !boxIntersects(cursor.getBlockMinX(block), cursor.getBlockMaxX(block),
+            cursor.getBlockMinY(block), cursor.getBlockMaxY(block)))
+          continue;
+        cursor.seekBlock(block);
+      }
+      while (cursor.next()) {
+        final float x = cursor.getX();
+        final float y = cursor.getY();
+        for (int o = 0; o < origins.length; o++) {
+          if (boxable && !boxContains(o, x, y))
+            continue;
+          if (distCalc.distance(origins[o], x, y) <= distance)
+            return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  /** Consumes the cursor's points, returning the new minimum distance. */
+  private double scan(boolean prune, double minDist) {
+    if (approximate)
+      return scanApproximately(prune, minDist);
+    final MultiPointCursor cursor = this.cursor;
+    while (cursor.next()) {
+      final float x = cursor.getX();
+      final float y = cursor.getY();
+      for (int o = 0; o < origins.length; o++) {
+        if (prune && !boxContains(o, x, y))
+          continue;
+        double dist = distCalc.distance(origins[o], x, y);
+        if (dist < minDist) {
+          minDist = dist;
+          nearestIndex = cursor.index();
+          nearestOrigin = o;
+          nearestX = x;
+          nearestY = y;
+        }
+      }
+    }
+    return minDist;
+  }
+
+  private double scanApproximately(boolean prune, double minDist) {
+    final MultiPointCursor cursor = this.cursor;
+    final int lastNearest = nearestIndex;
+    while (cursor.next()) {
+      final float x = cursor.getX();
+      final float y = cursor.getY();
+      for (int o = 0; o < origins.length; o++) {
+        if (prune && !boxContains(o, x, y))
+          continue;
+        double dy = y - origins[o].getY();
+        double dx = x - origins[o].getX();
+        if (dx > 180)
+          dx -= 360;
+        else if (dx < -180)
+          dx += 360;
+        dx *= cosOriginY[o];
+        double approx = dx * dx + dy * dy;
+        if (approx < nearestApprox) {
+          nearestApprox = approx;
+          nearestIndex = cursor.index();
+          nearestOrigin = o;
+          nearestX = x;
+          nearestY = y;
+        }
+      }
+    }
+    if (nearestIndex == lastNearest)
+      return minDist;
+    return distCalc.distance(origins[nearestOrigin], nearestX, nearestY);
+  }
+
+  private double scanVectors() {
+    final MultiPointCursor cursor = this.cursor;
+    double minChordSq = Double.MAX_VALUE;
+    while (cursor.next()) {
+      for (int o = 0; o < origins.length; o++) {
+        double chordSq = chordSq(o);
+        if (chordSq < minChordSq) {
+          minChordSq = chordSq;
+          nearestIndex = cursor.index();
+          nearestOrigin = o;
+          nearestVX = cursor.getVectorX();
+          nearestVY = cursor.getVectorY();
+          nearestVZ = cursor.getVectorZ();
+        }
+      }
+    }
+    if (nearestIndex == -1)
+      return Double.MAX_VALUE;
+    nearestIsVector = true;
+    //the chord subtends an angle of 2 * asin(chord / 2)
+    return Math.toDegrees(2 * Math.asin(Math.min(1, Math.sqrt(minChordSq) / 2)));
+  }
+
+  /** The squared chord between the cursor's current vector and an origin's. */
+  private double chordSq(int o) {
+    double dx = cursor.getVectorX() - originVX[o];
+    double dy = cursor.getVectorY() - originVY[o];
+    double dz = cursor.getVectorZ() - originVZ[o];
+    return dx * dx + dy * dy + dz * dz;
+  }
+
+  private double scanBlocks(double maxDistance) {
+    final MultiPointCursor cursor = this.cursor;
+    final int blockCount = cursor.getBlockCount();
+    //start with the block that looks nearest...
+    int seed = 0;
+    double seedDist = Double.POSITIVE_INFINITY;
+    for (int block = 0; block < blockCount; block++) {
+      for (int o = 0; o < origins.length; o++) {
+        double dist = approxDistanceSq(o, cursor.getBlockMinX(block), cursor.getBlockMaxX(block),
+            cursor.getBlockMinY(block), cursor.getBlockMaxY(block));
+        if (dist < seedDist) {
+          seedDist = dist;
+          seed = block;
+        }
+      }
+    }
+    //...then work outwards along the curve, where the nearby blocks are
+    double minDist = Double.MAX_VALUE;
+    for (int lo = seed, hi = seed + 1; lo >= 0 || hi < blockCount; lo--, hi++) {
+      if (lo >= 0)
+        minDist = scanBlock(lo, minDist, maxDistance);
+      if (hi < blockCount)
+        minDist = scanBlock(hi, minDist, maxDistance);
+    }
+    return minDist;
+  }
+
+  private double scanBlock(int block, double minDist, double maxDistance) {
+    final MultiPointCursor cursor = this.cursor;
+    final double bound = Math.min(minDist, maxDistance);
+    final boolean prune = boxable && bound < Double.MAX_VALUE;
+    if (prune) {
+      setBoxDistance(bound);
+      if (!boxIntersects(cursor.getBlockMinX(block), cursor.getBlockMaxX(block),
+          cursor.getBlockMinY(block), cursor.getBlockMaxY(block)))
+        return minDist;
+    }
+    cursor.seekBlock(block);
+    return scan(prune, minDist);
+  }
+
+  /**
+   * A cheap, equirectangular approximation of the squared distance (in
+   * degrees) from an origin to the nearest edge of a box. Only good for
+   * ordering.
+   */
+  private double approxDistanceSq(int o, double minX, double maxX, double minY, double maxY) {
+    final double x = origins[o].getX();
+    final double y = origins[o].getY();
+    double dy = y < minY ? minY - y : (y > maxY ? y - maxY : 0);
+    double dx = 0;
+    if (x < minX || x > maxX) {
+      dx = x < minX ? minX - x : x - maxX;
+      if (geo)//maybe it's nearer the other way around
+        dx = Math.min(dx, x < minX ? x + 360 - maxX : minX + 360 - x);
+    }
+    dx *= cosOriginY[o];
+    return dx * dx + dy * dy;
+  }
+
+  private void setBoxDistance(double distance) {
+    if (distance == boxDistance)
+      return;
+    boxDistance = distance;
+    for (int o = 0; o < origins.length; o++) {
+      final Point origin = origins[o];
+      if (geo) {
+        //see "Finding Points Within a Distance of a Latitude/Longitude Using
+        // Bounding Coordinates" by Jan Philip Matuschek
+        boxMinY[o] = origin.getY() - distance - BOX_SLACK;
+        boxMaxY[o] = origin.getY() + distance + BOX_SLACK;
+        double sinRatio = Math.sin(Math.toRadians(distance)) / Math.cos(Math.toRadians(origin.getY()));
+        if (boxMinY[o] <= -90 || boxMaxY[o] >= 90 || sinRatio >= 1) {
+          boxHalfWidth[o] = Double.POSITIVE_INFINITY;//covers a pole; all longitudes
+        } else {
+          boxHalfWidth[o] = Math.toDegrees(Math.asin(sinRatio)) + BOX_SLACK;
+        }
+      } else {
+        double d = (squared ? Math.sqrt(distance) : distance) + BOX_SLACK;
+        boxMinY[o] = origin.getY() - d;
+        boxMaxY[o] = origin.getY() + d;
+        boxHalfWidth[o] = d;
+      }
+    }
+  }
+
+  private boolean boxContains(int o, double x, double y) {
+    if (y < boxMinY[o] || y > boxMaxY[o])
+      return false;
+    double dx = x - origins[o].getX();
+    if (geo) {
+      if (dx > 180)
+        dx -= 360;
+      else if (dx < -180)
+        dx += 360;
+    }
+    return Math.abs(dx) <= boxHalfWidth[o];
+  }
+
+  /** Whether the box around any of the origins intersects the given one. */
+  private boolean boxIntersects(double minX, double maxX, double minY, double maxY) {
+    for (int o = 0; o < origins.length; o++) {
+      if (maxY < boxMinY[o] || minY > boxMaxY[o])
+        continue;
+      final double x = origins[o].getX();
+      if (spanIntersects(o, minX, maxX, x))
+        return true;
+      if (geo && (spanIntersects(o, minX, maxX, x - 360) || spanIntersects(o, minX, maxX, x + 360)))
+        return true;
+    }
+    return false;
+  }
+
+  private boolean spanIntersects(int o, double minX, double maxX, double centerX) {
+    return centerX + boxHalfWidth[o] >= minX && centerX - boxHalfWidth[o] <= maxX;
+  }
+
+  /** The first origin. */
+  public Point getOrigin() {
+    return origins[0];
+  }
+
+  public Point[] getOrigins() {
+    return origins.clone();
+  }
+
+  /** The number of points of the document of the last call. */
+  public int getPointCount() {
+    return cursor.size();
+  }
+
+  /**
+   * The number of points looked at by all calls so far; points skipped by
+   * pruning aren't counted.
+   */
+  public long getPointsScanned() {
+    return cursor.getVisited() + kernelScanned;
+  }
+
+  /** The ordinal of the nearest point found by the last call, or -1 if none. */
+  public int getNearestIndex() {
+    return nearestIndex;
+  }
+
+  /** The ordinal of the origin nearest to that point, or -1 if none. */
+  public int getNearestOrigin() {
+    return nearestOrigin;
+  }
+
+  public float getNearestX() {
+    if (nearestIsVector)
+      decodeNearest();
+    return nearestX;
+  }
+
+  public float getNearestY() {
+    if (nearestIsVector)
+      decodeNearest();
+    return nearestY;
+  }
+
+  private void decodeNearest() {
+    nearestX = (float) MultiPointEncoding.vectorToX(nearestVX, nearestVY);
+    nearestY = (float) MultiPointEncoding.vectorToY(nearestVZ);
+    nearestIsVector = false;
+  }
+}
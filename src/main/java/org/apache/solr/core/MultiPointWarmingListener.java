@@ -0,0 +1,137 @@
+package org.apache.solr.core;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import com.spatial4j.core.shape.Point;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.spatial.MultiPointCursor;
+import org.apache.lucene.spatial.NearestPointFinder;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.schema.FieldType;
+import org.apache.solr.schema.IndexSchema;
+import org.apache.solr.schema.MultiPointDocValuesField;
+import org.apache.solr.search.SolrIndexSearcher;
+import org.apache.solr.search.function.distance.MultiPointCache;
+import org.apache.solr.search.function.distance.MultiPointDocs;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Warms the points of {@link MultiPointDocValuesField}s in new segments, so
+ * that the first distance queries on a new searcher don't pay for faulting in
+ * and decoding the DocValues. Segments already in the current searcher are
+ * skipped, so the cost follows the amount of change rather than the index size.
+ * If the field type has a {@link MultiPointCache} then it's filled. The
+ * nearest point to the "origins" (if any) is then found for every document,
+ * which also warms up the code that does it.
+ * <pre>
+ * &lt;listener event="newSearcher" class="org.apache.solr.core.MultiPointWarmingListener"&gt;
+ *   &lt;arr name="fields"&gt;&lt;str&gt;pointsDV&lt;/str&gt;&lt;/arr&gt;
+ *   &lt;arr name="origins"&gt;&lt;str&gt;40.7,-74.0&lt;/str&gt;&lt;/arr&gt;
+ * &lt;/listener&gt;
+ * </pre>
+ * Register it for "firstSearcher" as well to warm the whole index at startup.
+ */
+public class MultiPointWarmingListener extends AbstractSolrEventListener {
+
+  private static final Logger log = LoggerFactory.getLogger(MultiPointWarmingListener.class);
+
+  private final List<String> fields = new ArrayList<String>();
+  private final List<String> origins = new ArrayList<String>();
+
+  public MultiPointWarmingListener(SolrCore core) {
+    super(core);
+  }
+
+  @Override
+  public void init(NamedList args) {
+    super.init(args);
+    Collection<String> fieldsArg = args.removeConfigArgs("fields");
+    if (fieldsArg != null)
+      fields.addAll(fieldsArg);
+    Collection<String> originsArg = args.removeConfigArgs("origins");
+    if (originsArg != null)
+      origins.addAll(originsArg);
+    if (fields.isEmpty())
+      throw new SolrException(SolrException.ErrorCode.SERVER_ERROR, getClass().getSimpleName()
+          + " requires 'fields'");
+  }
+
+  @Override
+  public void newSearcher(SolrIndexSearcher newSearcher, SolrIndexSearcher currentSearcher) {
+    long startTime = System.currentTimeMillis();
+    Set<Object> warmCoreKeys = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+    if (currentSearcher != null) {
+      for (LeafReaderContext leaf : currentSearcher.getIndexReader().leaves()) {
+        warmCoreKeys.add(leaf.reader().getCoreCacheKey());
+      }
+    }
+    IndexSchema schema = newSearcher.getSchema();
+    int segments = 0;
+    for (LeafReaderContext leaf : newSearcher.getIndexReader().leaves()) {
+      LeafReader reader = leaf.reader();
+      if (warmCoreKeys.contains(reader.getCoreCacheKey()))
+        continue;
+      segments++;
+      for (String field : fields) {
+        FieldType type = schema.getField(field).getType();
+        if (!(type instanceof MultiPointDocValuesField))
+          throw new SolrException(SolrException.ErrorCode.SERVER_ERROR, "Field " + field
+              + " is not a " + MultiPointDocValuesField.class.getSimpleName());
+        try {
+          warm(reader, field, (MultiPointDocValuesField) type);
+        } catch (IOException e) {
+          log.error("Error warming " + field + " of " + reader, e);
+        }
+      }
+    }
+    if (log.isInfoEnabled())
+      log.info("Warmed " + fields + " in " + segments + " new segment(s) in "
+          + (System.currentTimeMillis() - startTime) + "ms");
+  }
+
+  private void warm(LeafReader reader, String field, MultiPointDocValuesField type) throws IOException {
+    Point[] points = new Point[origins.size()];
+    for (int i = 0; i < points.length; i++) {
+      points[i] = type.parseLatLon(origins.get(i));
+    }
+    NearestPointFinder finder = points.length > 0 ? new NearestPointFinder(points, type.getCtx()) : null;
+    final int maxDoc = reader.maxDoc();
+    MultiPointDocs docs = MultiPointDocs.get(reader, field, type, true);
+    if (docs == null || (finder == null && type.getCache() != null))
+      return;
+    for (int doc = 0; doc < maxDoc; doc++) {
+      if (finder != null) {
+        docs.minDistance(finder, doc, Double.MAX_VALUE);
+      } else {
+        MultiPointCursor cursor = docs.cursor(doc);//pages it in
+        while (cursor.next()) ;
+      }
+    }
+  }
+}
@@ -0,0 +1,220 @@
+package org.apache.solr.handler;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import com.spatial4j.core.context.SpatialContext;
+import com.spatial4j.core.distance.DistanceUtils;
+import com.spatial4j.core.shape.Point;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.spatial.NearestPointFinder;
+import org.apache.lucene.util.IntroSorter;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.response.ResultContext;
+import org.apache.solr.response.SolrQueryResponse;
+import org.apache.solr.schema.FieldType;
+import org.apache.solr.schema.MultiPointDocValuesField;
+import org.apache.solr.search.DocIterator;
+import org.apache.solr.search.DocSet;
+import org.apache.solr.search.DocSlice;
+import org.apache.solr.search.QParser;
+import org.apache.solr.search.QueryParsing;
+import org.apache.solr.search.ReturnFields;
+import org.apache.solr.search.SolrIndexSearcher;
+import org.apache.solr.search.SolrReturnFields;
+import org.apache.solr.search.SyntaxError;
+import org.apache.solr.search.function.distance.MultiPointDocs;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Returns all the documents matching a query nearest first, by the distance
+ * from one or more points to the nearest point of a
+ * {@link MultiPointDocValuesField}, for batch jobs that would otherwise page
+ * through them:
+ * <code>/mpdvexport?q=...&amp;fq=...&amp;sfield=pointsDV&amp;pt=lat,lon&amp;fl=id,score</code>.
+ * The distance of each match is calculated once, in one pass over the
+ * segments, and the matches are sorted by it (then by docid). The documents
+ * are then written out one at a time by the response writer, so the memory
+ * used is 12 bytes per match rather than the documents, plus 4 per document
+ * returned if the score is. The score is the distance, in the units of distDV.
+ * <p/>
+ * "d" optionally limits the distance, and "rows" the number of documents.
+ * Documents without points are omitted. Not supported in distributed search.
+ * <pre>
+ * &lt;requestHandler name="/mpdvexport" class="solr.MultiPointExportHandler"/&gt;
+ * </pre>
+ */
+public class MultiPointExportHandler extends RequestHandlerBase {
+
+  @Override
+  public void handleRequestBody(SolrQueryRequest req, SolrQueryResponse rsp) throws Exception {
+    SolrParams params = req.getParams();
+    String fieldName = params.get("sfield");
+    if (fieldName == null)
+      throw new SolrException(SolrException.ErrorCode.BAD_REQUEST, "Missing 'sfield'");
+    FieldType type = req.getSchema().getField(fieldName).getType();
+    if (!(type instanceof MultiPointDocValuesField))
+      throw new SolrException(SolrException.ErrorCode.BAD_REQUEST, "'sfield' only supports fields of type "
+          + MultiPointDocValuesField.class.getName() + ", not " + type.getClass().getName());
+    MultiPointDocValuesField mpdvFieldType = (MultiPointDocValuesField) type;
+    SpatialContext ctx = mpdvFieldType.getCtx();
+
+    String[] ptStrs = params.getParams("pt");
+    if (ptStrs == null || ptStrs.length == 0)
+      throw new SolrException(SolrException.ErrorCode.BAD_REQUEST, "Missing 'pt'");
+    Point[] points = new Point[ptStrs.length];
+    for (int i = 0; i < ptStrs.length; i++) {
+      points[i] = mpdvFieldType.parseLatLon(ptStrs[i]);
+    }
+
+    double maxDistance = Double.MAX_VALUE;
+    String dStr = params.get("d");
+    if (dStr != null) {
+      try {
+        maxDistance = Double.parseDouble(dStr);
+      } catch (NumberFormatException e) {
+        throw new SolrException(SolrException.ErrorCode.BAD_REQUEST, "Bad distance 'd': " + dStr, e);
+      }
+      if (maxDistance < 0)
+        throw new SolrException(SolrException.ErrorCode.BAD_REQUEST, "Distance 'd' must not be negative: " + maxDistance);
+      if (ctx.isGeo())
+        maxDistance = DistanceUtils.dist2Degrees(maxDistance, DistanceUtils.EARTH_MEAN_RADIUS_KM);
+    }
+
+    List<Query> queries = new ArrayList<Query>();
+    Query query;
+    try {
+      query = QParser.getParser(params.get("q", "*:*"), params.get(QueryParsing.DEFTYPE), req).getQuery();
+      queries.add(query);
+      String[] fqs = params.getParams("fq");
+      if (fqs != null) {
+        for (String fq : fqs) {
+          if (fq != null && fq.trim().length() > 0)
+            queries.add(QParser.getParser(fq, null, req).getQuery());
+        }
+      }
+    } catch (SyntaxError e) {
+      throw new SolrException(SolrException.ErrorCode.BAD_REQUEST, e);
+    }
+
+    SolrIndexSearcher searcher = req.getSearcher();
+    DocSet matches = searcher.getDocSet(queries);
+    int[] docs = new int[matches.size()];
+    double[] distances = new double[docs.length];
+    int count = distances(searcher, matches, fieldName, mpdvFieldType, new NearestPointFinder(points, ctx),
+        maxDistance, docs, distances);
+    sort(docs, distances, count);
+
+    int rows = Math.min(count, params.getInt("rows", Integer.MAX_VALUE));
+    ReturnFields returnFields = new SolrReturnFields(req);
+    float[] scores = null;
+    if (returnFields.wantsScore()) {
+      scores = new float[rows];
+      for (int i = 0; i < rows; i++) {
+        scores[i] = (float) distances[i];
+      }
+    }
+    ResultContext result = new ResultContext();
+    result.docs = new DocSlice(0, rows, docs, scores, count, count > 0 ? (float) distances[count - 1] : 0f);
+    result.query = query;
+    rsp.setReturnFields(returnFields);
+    rsp.add("response", result);
+  }
+
+  /**
+   * Fills in the docids of the matches with points within {@code maxDistance}
+   * and their distances, returning how many there are.
+   */
+  static int distances(SolrIndexSearcher searcher, DocSet matches, String fieldName, MultiPointDocValuesField type,
+                       NearestPointFinder finder, double maxDistance, int[] docs, double[] distances)
+      throws IOException {
+    final List<LeafReaderContext> leaves = searcher.getIndexReader().leaves();
+    int count = 0;
+    int leafOrd = -1;
+    LeafReaderContext leaf = null;
+    MultiPointDocs leafDocs = null;
+    for (DocIterator it = matches.iterator(); it.hasNext(); ) {
+      final int globalDoc = it.nextDoc();
+      //docs are in order; move on to the leaf containing this one
+      while (leaf == null || globalDoc >= leaf.docBase + leaf.reader().maxDoc()) {
+        leaf = leaves.get(++leafOrd);
+        leafDocs = MultiPointDocs.get(leaf.reader(), fieldName, type, true);
+      }
+      if (leafDocs == null)
+        continue;
+      final double dist = leafDocs.minDistance(finder, globalDoc - leaf.docBase, maxDistance);
+      if (dist > maxDistance || dist == Double.MAX_VALUE)//too far, or no points
+        continue;
+      docs[count] = globalDoc;
+      distances[count] = dist;
+      count++;
+    }
+    return count;
+  }
+
+  /** Sorts the first {@code count} docs by distance, then docid. */
+  static void sort(final int[] docs, final double[] distances, int count) {
+    new IntroSorter() {
+      private int pivotDoc;
+      private double pivotDistance;
+
+      @Override
+      protected void swap(int i, int j) {
+        int doc = docs[i];
+        docs[i] = docs[j];
+        docs[j] = doc;
+        double distance = distances[i];
+        distances[i] = distances[j];
+        distances[j] = distance;
+      }
+
+      @Override
+      protected int compare(int i, int j) {
+        int cmp = Double.compare(distances[i], distances[j]);
+        return cmp != 0 ? cmp : Integer.compare(docs[i], docs[j]);
+      }
+
+      @Override
+      protected void setPivot(int i) {
+        pivotDoc = docs[i];
+        pivotDistance = distances[i];
+      }
+
+      @Override
+      protected int comparePivot(int j) {
+        int cmp = Double.compare(pivotDistance, distances[j]);
+        return cmp != 0 ? cmp : Integer.compare(pivotDoc, docs[j]);
+      }
+    }.sort(0, count);
+  }
+
+  @Override
+  public String getDescription() {
+    return "Exports documents sorted by distance to the nearest of multiple points";
+  }
+
+  @Override
+  public String getSource() {
+    return null;
+  }
+}
@@ -0,0 +1,177 @@
+package org.apache.solr.handler.component;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import com.spatial4j.core.context.SpatialContext;
+import com.spatial4j.core.distance.DistanceUtils;
+import com.spatial4j.core.shape.Point;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.spatial.NearestPointFinder;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.common.util.SimpleOrderedMap;
+import org.apache.solr.schema.FieldType;
+import org.apache.solr.schema.MultiPointDocValuesField;
+import org.apache.solr.search.DocIterator;
+import org.apache.solr.search.DocSet;
+import org.apache.solr.search.SolrIndexSearcher;
+import org.apache.solr.search.function.distance.MultiPointDocs;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Counts the matching documents having a point within each of several
+ * distances of a query point, e.g. "within 1 / 5 / 10 / 25 km", computing each
+ * document's nearest distance once for all of them:
+ * <code>facet=true&amp;facet.mpdv.field=pointsDV&amp;facet.mpdv.pt=lat,lon&amp;facet.mpdv.ranges=1,5,10,25</code>.
+ * The counts are cumulative and returned as "facet_mpdv" keyed by field then
+ * range. Not supported in distributed search.
+ * <p/>
+ * Register it (conventionally as "{@value #COMPONENT_NAME}") and add it to the
+ * "last-components" of a search handler.
+ */
+public class MultiPointFacetComponent extends SearchComponent {
+
+  public static final String COMPONENT_NAME = "mpdvFacet";
+
+  public static final String FACET_MPDV_FIELD = "facet.mpdv.field";
+  public static final String FACET_MPDV_PT = "facet.mpdv.pt";
+  public static final String FACET_MPDV_RANGES = "facet.mpdv.ranges";
+
+  @Override
+  public void prepare(ResponseBuilder rb) throws IOException {
+    if (isEnabled(rb.req.getParams()))
+      rb.setNeedDocSet(true);
+  }
+
+  private boolean isEnabled(SolrParams params) {
+    return params.getBool("facet", false) && params.get(FACET_MPDV_FIELD) != null;
+  }
+
+  @Override
+  public void process(ResponseBuilder rb) throws IOException {
+    SolrParams params = rb.req.getParams();
+    if (!isEnabled(params))
+      return;
+    String fieldName = params.get(FACET_MPDV_FIELD);
+    FieldType type = rb.req.getSchema().getField(fieldName).getType();
+    if (!(type instanceof MultiPointDocValuesField))
+      throw new SolrException(SolrException.ErrorCode.BAD_REQUEST, FACET_MPDV_FIELD + " only supports fields of type "
+          + MultiPointDocValuesField.class.getName() + ", not " + type.getClass().getName());
+    MultiPointDocValuesField mpdvFieldType = (MultiPointDocValuesField) type;
+    SpatialContext ctx = mpdvFieldType.getCtx();
+
+    String[] ptStrs = params.getParams(FACET_MPDV_PT);
+    if (ptStrs == null || ptStrs.length == 0)
+      throw new SolrException(SolrException.ErrorCode.BAD_REQUEST, "Missing " + FACET_MPDV_PT);
+    Point[] points = new Point[ptStrs.length];
+    for (int i = 0; i < points.length; i++) {
+      points[i] = mpdvFieldType.parseLatLon(ptStrs[i]);
+    }
+
+    String rangesStr = params.get(FACET_MPDV_RANGES);
+    if (rangesStr == null)
+      throw new SolrException(SolrException.ErrorCode.BAD_REQUEST, "Missing " + FACET_MPDV_RANGES);
+    String[] rangeStrs = rangesStr.split(",");
+    double[] ranges = new double[rangeStrs.length];
+    for (int i = 0; i < ranges.length; i++) {
+      rangeStrs[i] = rangeStrs[i].trim();
+      try {
+        ranges[i] = Double.parseDouble(rangeStrs[i]);
+      } catch (NumberFormatException e) {
+        throw new SolrException(SolrException.ErrorCode.BAD_REQUEST, "Bad distance in " + FACET_MPDV_RANGES
+            + ": " + rangeStrs[i], e);
+      }
+      if (!(ranges[i] >= 0))//or NaN
+        throw new SolrException(SolrException.ErrorCode.BAD_REQUEST, FACET_MPDV_RANGES
+            + " must not be negative: " + rangeStrs[i]);
+      if (i > 0 && ranges[i] <= ranges[i - 1])//the counts are cumulative
+        throw new SolrException(SolrException.ErrorCode.BAD_REQUEST, FACET_MPDV_RANGES
+            + " must be in ascending order without repeats: " + rangesStr);
+    }
+    if (ctx.isGeo()) {
+      for (int i = 0; i < ranges.length; i++)
+        ranges[i] = DistanceUtils.dist2Degrees(ranges[i], DistanceUtils.EARTH_MEAN_RADIUS_KM);
+    }
+
+    int[] counts = count(rb.req.getSearcher(), rb.getResults().docSet, fieldName, mpdvFieldType,
+        new NearestPointFinder(points, ctx), ranges);
+
+    NamedList<Integer> fieldCounts = new SimpleOrderedMap<Integer>();
+    for (int i = 0; i < ranges.length; i++) {
+      fieldCounts.add(rangeStrs[i], counts[i]);
+    }
+    NamedList<Object> facets = new SimpleOrderedMap<Object>();
+    facets.add(fieldName, fieldCounts);
+    rb.rsp.add("facet_mpdv", facets);
+  }
+
+  /**
+   * Returns, for each of the ascending ranges, the number of documents in the
+   * set with a point within it.
+   */
+  static int[] count(SolrIndexSearcher searcher, DocSet docs, String fieldName, MultiPointDocValuesField type,
+                     NearestPointFinder finder, double[] ranges) throws IOException {
+    final int[] counts = new int[ranges.length];
+    if (ranges.length == 0)
+      return counts;
+    final double maxRange = ranges[ranges.length - 1];
+    final List<LeafReaderContext> leaves = searcher.getIndexReader().leaves();
+    int leafOrd = -1;
+    LeafReaderContext leaf = null;
+    MultiPointDocs leafDocs = null;
+    for (DocIterator it = docs.iterator(); it.hasNext(); ) {
+      final int globalDoc = it.nextDoc();
+      //docs are in order; move on to the leaf containing this one
+      while (leaf == null || globalDoc >= leaf.docBase + leaf.reader().maxDoc()) {
+        leaf = leaves.get(++leafOrd);
+        leafDocs = MultiPointDocs.get(leaf.reader(), fieldName, type, true);
+      }
+      if (leafDocs == null)
+        continue;
+      final double dist = leafDocs.minDistance(finder, globalDoc - leaf.docBase, maxRange);
+      if (dist > maxRange)
+        continue;
+      //the first range that contains it
+      int idx = Arrays.binarySearch(ranges, dist);
+      if (idx < 0)
+        idx = -idx - 1;
+      else
+        while (idx > 0 && ranges[idx - 1] == dist) idx--;
+      counts[idx]++;
+    }
+    //cumulative
+    for (int i = 1; i < counts.length; i++) {
+      counts[i] += counts[i - 1];
+    }
+    return counts;
+  }
+
+  @Override
+  public String getDescription() {
+    return "Distance range facets on " + MultiPointDocValuesField.class.getSimpleName();
+  }
+
+  @Override
+  public String getSource() {
+    return null;
+  }
+}
@@ -0,0 +1,129 @@
+package org.apache.solr.response.transform;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import com.spatial4j.core.shape.Point;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.ReaderUtil;
+import org.apache.lucene.spatial.NearestPointFinder;
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.common.util.SimpleOrderedMap;
+import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.schema.FieldType;
+import org.apache.solr.schema.MultiPointDocValuesField;
+import org.apache.solr.search.function.distance.MultiPointDocs;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Adds the nearest of a document's {@link MultiPointDocValuesField} points to
+ * the query point(s): <code>fl=id,[mpdv field=pointsDV pt=lat,lon]</code>. The
+ * value has the "distance" (as distDV computes it) and the "point" as
+ * "lat,lon"; the encodings reorder and may merge points, so their position in
+ * the input isn't known. Documents without points get nothing.
+ * <p/>
+ * Only the returned documents are looked at, one scan each; a segment's
+ * points are looked up once for all of its documents.
+ */
+public class MultiPointTransformerFactory extends TransformerFactory {
+
+  @Override
+  public DocTransformer create(String field, SolrParams params, SolrQueryRequest req) {
+    String fieldName = params.get("field");
+    if (fieldName == null)
+      fieldName = req.getParams().get("sfield");
+    if (fieldName == null)
+      throw new SolrException(SolrException.ErrorCode.BAD_REQUEST, "[" + field + "] requires a 'field'");
+    FieldType type = req.getSchema().getField(fieldName).getType();
+    if (!(type instanceof MultiPointDocValuesField))
+      throw new SolrException(SolrException.ErrorCode.BAD_REQUEST, "[" + field + "] only supports fields of type "
+          + MultiPointDocValuesField.class.getName() + ", not " + type.getClass().getName());
+    MultiPointDocValuesField mpdvFieldType = (MultiPointDocValuesField) type;
+
+    String[] ptStrs = params.getParams("pt");
+    if (ptStrs == null)
+      ptStrs = req.getParams().getParams("pt");
+    if (ptStrs == null || ptStrs.length == 0)
+      throw new SolrException(SolrException.ErrorCode.BAD_REQUEST, "[" + field + "] requires a 'pt'");
+    Point[] points = new Point[ptStrs.length];
+    for (int i = 0; i < points.length; i++) {
+      points[i] = mpdvFieldType.parseLatLon(ptStrs[i]);
+    }
+    return new MultiPointTransformer(field, fieldName, mpdvFieldType,
+        new NearestPointFinder(points, mpdvFieldType.getCtx()));
+  }
+
+  static class MultiPointTransformer extends DocTransformer {
+    private final String name;
+    private final String fieldName;
+    private final MultiPointDocValuesField type;
+    private final NearestPointFinder finder;
+    private List<LeafReaderContext> leaves;
+    private MultiPointDocs[] docsByLeaf;//looked up as needed
+    private boolean[] lookedUp;
+
+    MultiPointTransformer(String name, String fieldName, MultiPointDocValuesField type, NearestPointFinder finder) {
+      this.name = name;
+      this.fieldName = fieldName;
+      this.type = type;
+      this.finder = finder;
+    }
+
+    @Override
+    public String getName() {
+      return name;
+    }
+
+    @Override
+    public void setContext(TransformContext context) {
+      if (context == null) {//the response writer is done with the documents
+        leaves = null;
+        docsByLeaf = null;
+        lookedUp = null;
+        return;
+      }
+      leaves = context.searcher.getIndexReader().leaves();
+      docsByLeaf = new MultiPointDocs[leaves.size()];
+      lookedUp = new boolean[leaves.size()];
+    }
+
+    @Override
+    public void transform(SolrDocument doc, int docid) throws IOException {
+      int ord = ReaderUtil.subIndex(docid, leaves);
+      LeafReaderContext leaf = leaves.get(ord);
+      if (!lookedUp[ord]) {
+        docsByLeaf[ord] = MultiPointDocs.get(leaf.reader(), fieldName, type, false);
+        lookedUp[ord] = true;
+      }
+      MultiPointDocs docs = docsByLeaf[ord];
+      if (docs == null)
+        return;
+      double dist = docs.minDistance(finder, docid - leaf.docBase, Double.MAX_VALUE);
+      if (finder.getNearestIndex() == -1)
+        return;
+      NamedList<Object> nearest = new SimpleOrderedMap<Object>();
+      nearest.add("distance", dist);
+      nearest.add("point", finder.getNearestY() + "," + finder.getNearestX());
+      doc.setField(name, nearest);
+    }
+  }
+}
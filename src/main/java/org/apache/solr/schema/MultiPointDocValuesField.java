@@ -19,29 +19,89 @@ package org.apache.solr.schema;
 
 import com.spatial4j.core.context.SpatialContext;
 import com.spatial4j.core.context.SpatialContextFactory;
+import com.spatial4j.core.distance.DistanceUtils;
+import com.spatial4j.core.exception.InvalidShapeException;
+import com.spatial4j.core.io.ParseUtils;
 import com.spatial4j.core.shape.Point;
+import com.spatial4j.core.shape.Rectangle;
 import org.apache.lucene.document.BinaryDocValuesField;
+import org.apache.lucene.document.SortedNumericDocValuesField;
 import org.apache.lucene.index.IndexableField;
 import org.apache.lucene.queries.function.ValueSource;
 import org.apache.lucene.search.SortField;
 import org.apache.lucene.spatial.MultiPointEncoding;
+import org.apache.lucene.spatial.prefix.RecursivePrefixTreeStrategy;
+import org.apache.lucene.spatial.prefix.tree.SpatialPrefixTree;
+import org.apache.lucene.spatial.prefix.tree.SpatialPrefixTreeFactory;
 import org.apache.lucene.uninverting.UninvertingReader;
 import org.apache.lucene.util.BytesRef;
 import org.apache.solr.common.SolrException;
 import org.apache.solr.common.SolrInputField;
 import org.apache.solr.response.TextResponseWriter;
 import org.apache.solr.search.QParser;
+import org.apache.solr.search.function.distance.MultiPointCache;
 import org.apache.solr.util.MapListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * A spatial FieldType for storing a variable number of points in DocValues. It
- * is expressly for sorting / boosting.
+ * is expressly for sorting / boosting, and finding the nearest documents when
+ * also indexed in a prefix tree (see "prefixTree" below).
+ * <p/>
+ * The optional "format" attribute chooses the {@link MultiPointEncoding}: "flat"
+ * (the default); "bbox", which adds a bounding box per document so that
+ * documents can be skipped without looking at their points; or "compact",
+ * which stores fixed-point coordinates to "precision" decimal places (default
+ * 5, at most 6) as variable-length deltas, for a much smaller index; or
+ * "vector", which stores unit vectors so that the nearest point is found
+ * without trigonometry (geospatial contexts only). Documents
+ * written in any format can be read regardless of the current setting.
+ * <p/>
+ * The optional "blockThreshold" attribute is a point count above which a
+ * document is instead written in {@link MultiPointEncoding#FORMAT_BLOCKED},
+ * which lets a nearest-point search skip most of a large document. It's
+ * disabled by default.
+ * <p/>
+ * To bound the size of documents, "dedup" (default false) drops repeated
+ * points; "snap" first rounds points to a grid of that spacing (kilometers for
+ * geospatial contexts), so that nearby points become repeats; and "maxPoints"
+ * thins documents with more points than that down to that many, evenly spread
+ * over the original area. The number of points removed is published with the
+ * statistics of {@link org.apache.solr.update.processor.MultiValUpdateRequestProcessorFactory}.
+ * <p/>
+ * The optional "storage" attribute is "binary" (the default), storing the
+ * encoding above in BinaryDocValues, or "morton", storing each point as a 64-bit
+ * Morton code (see {@link MultiPointEncoding#toMorton}) in SortedNumericDocValues.
+ * The latter has no size limit per document, is compressed by the codec, and
+ * lets a search skip the points with codes outside the range of the box it's
+ * interested in; "format" and "blockThreshold" don't apply to it.
+ * <p/>
+ * The optional "cacheMaxRamMB" attribute enables a {@link MultiPointCache} of
+ * decoded points per segment, limited to that much memory, which is shared by
+ * the fields of this type. It's disabled by default.
+ * <p/>
+ * The optional "prefixTree" attribute, "geohash" or "quad", also indexes the
+ * points as the terms of a {@link RecursivePrefixTreeStrategy}, from the same
+ * parse, with "maxLevels" or "maxDistErr" (in degrees) setting the precision as
+ * for {@link SpatialPrefixTreeFactory}. They let
+ * {@link org.apache.solr.search.MultiPointNearestQParserPlugin} find the nearest
+ * documents without computing the distance of every document. None by default.
+ * <p/>
+ * The parsers, transformer and components that query these fields share their
+ * parameters' conventions: as with geofilt, the field and the query point
+ * default to the "sfield" and "pt" request params; a query point is "lat,lon",
+ * and may be repeated to measure from the nearest of several; and distances
+ * are in kilometers for geospatial contexts.
  * <p/>
  * I wanted to extend {@link AbstractSpatialFieldType} but createField() is
  * final, which is unfortunate to get around the multi-value limitations in Solr
@@ -50,63 +110,324 @@ import java.util.Map;
  */
 public class MultiPointDocValuesField extends FieldType {
 
+  private static final Logger log = LoggerFactory.getLogger(MultiPointDocValuesField.class);
+
   private SpatialContext ctx;
+  private int format = MultiPointEncoding.FORMAT_FLAT;
+  private boolean morton = false;
+  private int precision = MultiPointEncoding.DEFAULT_PRECISION;
+  private int blockThreshold = 0;//disabled
+  private MultiPointCache cache;//null if disabled
+  private boolean dedup = false;
+  private double snapDegrees = 0;//disabled
+  private int maxPoints = 0;//unlimited
+  private SpatialPrefixTree grid;//null if not indexed
+  private final ConcurrentHashMap<String, RecursivePrefixTreeStrategy> fieldStrategyMap =
+      new ConcurrentHashMap<String, RecursivePrefixTreeStrategy>();
 
   @Override
   protected void init(IndexSchema schema, Map<String, String> args) {
     super.init(schema, args);
+    String formatStr = args.remove("format");
+    if (formatStr != null) {
+      if ("flat".equals(formatStr))
+        format = MultiPointEncoding.FORMAT_FLAT;
+      else if ("bbox".equals(formatStr))
+        format = MultiPointEncoding.FORMAT_BBOX;
+      else if ("compact".equals(formatStr))
+        format = MultiPointEncoding.FORMAT_COMPACT;
+      else if ("vector".equals(formatStr))
+        format = MultiPointEncoding.FORMAT_VECTOR;
+      else
+        throw new SolrException(SolrException.ErrorCode.SERVER_ERROR, "Unknown format '" + formatStr
+            + "' for field type " + typeName + "; expected 'flat', 'bbox', 'compact' or 'vector'");
+    }
+    String storageStr = args.remove("storage");
+    if (storageStr != null) {
+      if ("morton".equals(storageStr))
+        morton = true;
+      else if (!"binary".equals(storageStr))
+        throw new SolrException(SolrException.ErrorCode.SERVER_ERROR, "Unknown storage '" + storageStr
+            + "' for field type " + typeName + "; expected 'binary' or 'morton'");
+      if (morton && formatStr != null)
+        throw new SolrException(SolrException.ErrorCode.SERVER_ERROR, "format doesn't apply to storage 'morton'"
+            + " for field type " + typeName);
+    }
+    String precisionStr = args.remove("precision");
+    if (precisionStr != null) {
+      precision = Integer.parseInt(precisionStr);
+      if (precision < 0 || precision > MultiPointEncoding.MAX_PRECISION)
+        throw new SolrException(SolrException.ErrorCode.SERVER_ERROR, "precision must be between 0 and "
+            + MultiPointEncoding.MAX_PRECISION + " for field type " + typeName);
+    }
+    String blockThresholdStr = args.remove("blockThreshold");
+    if (blockThresholdStr != null) {
+      blockThreshold = Integer.parseInt(blockThresholdStr);
+      if (morton && blockThreshold > 0)
+        throw new SolrException(SolrException.ErrorCode.SERVER_ERROR, "blockThreshold doesn't apply to storage"
+            + " 'morton' for field type " + typeName);
+    }
+    String cacheMaxRamMBStr = args.remove("cacheMaxRamMB");
+    if (cacheMaxRamMBStr != null) {
+      double cacheMaxRamMB = Double.parseDouble(cacheMaxRamMBStr);
+      if (cacheMaxRamMB > 0)
+        cache = new MultiPointCache((long) (cacheMaxRamMB * 1024 * 1024));
+    }
+    String dedupStr = args.remove("dedup");
+    if (dedupStr != null)
+      dedup = Boolean.parseBoolean(dedupStr);
+    String snapStr = args.remove("snap");
+    String maxPointsStr = args.remove("maxPoints");
+    if (maxPointsStr != null) {
+      maxPoints = Integer.parseInt(maxPointsStr);
+      if (maxPoints < 0)
+        throw new SolrException(SolrException.ErrorCode.SERVER_ERROR, "maxPoints must not be negative"
+            + " for field type " + typeName);
+    }
+    Map<String, String> gridArgs = new HashMap<String, String>();
+    for (String key : new String[]{SpatialPrefixTreeFactory.PREFIX_TREE, SpatialPrefixTreeFactory.MAX_LEVELS,
+        SpatialPrefixTreeFactory.MAX_DIST_ERR}) {
+      String value = args.remove(key);
+      if (value != null)
+        gridArgs.put(key, value);
+    }
+    if (!gridArgs.isEmpty() && !gridArgs.containsKey(SpatialPrefixTreeFactory.PREFIX_TREE))
+      throw new SolrException(SolrException.ErrorCode.SERVER_ERROR, "maxLevels and maxDistErr require a"
+          + " prefixTree for field type " + typeName);
     //COPIED FROM AbstractSpatialFieldType:
     //Solr expects us to remove the parameters we've used.
     MapListener<String, String> argsWrap = new MapListener<String, String>(args);
     ctx = SpatialContextFactory.makeSpatialContext(argsWrap, schema.getResourceLoader().getClassLoader());
     args.keySet().removeAll(argsWrap.getSeenKeys());
+    if (format == MultiPointEncoding.FORMAT_VECTOR && !ctx.isGeo())
+      throw new SolrException(SolrException.ErrorCode.SERVER_ERROR, "format 'vector' requires a geospatial"
+          + " context for field type " + typeName);
+    if (snapStr != null) {
+      double snap = Double.parseDouble(snapStr);
+      if (snap < 0)
+        throw new SolrException(SolrException.ErrorCode.SERVER_ERROR, "snap must not be negative"
+            + " for field type " + typeName);
+      snapDegrees = ctx.isGeo() ? DistanceUtils.dist2Degrees(snap, DistanceUtils.EARTH_MEAN_RADIUS_KM) : snap;
+    }
+    if (!gridArgs.isEmpty())
+      grid = SpatialPrefixTreeFactory.makeSPT(gridArgs, schema.getResourceLoader().getClassLoader(), ctx);
   }
 
   public SpatialContext getCtx() {
     return ctx;
   }
 
+  /**
+   * Parses a query point given as "lat,lon" (or "y,x" for non-geospatial
+   * contexts).
+   */
+  public Point parseLatLon(String value) {
+    double[] parsedLatLong;
+    try {
+      parsedLatLong = ParseUtils.parseLatitudeLongitude(value);
+    } catch (InvalidShapeException e) {
+      throw new SolrException(SolrException.ErrorCode.BAD_REQUEST, e);
+    }
+    return ctx.makePoint(parsedLatLong[1], parsedLatLong[0]);
+  }
+
+  /** The cache of decoded points, or null if it's disabled. */
+  public MultiPointCache getCache() {
+    return cache;
+  }
+
+  /** Whether points are stored as Morton codes in SortedNumericDocValues. */
+  public boolean isMorton() {
+    return morton;
+  }
+
+  /** The prefix tree the points are also indexed with, or null if they aren't. */
+  public SpatialPrefixTree getGrid() {
+    return grid;
+  }
+
+  /** The strategy indexing the field's points in {@link #getGrid()}, or null if they aren't. */
+  public RecursivePrefixTreeStrategy getStrategy(String fieldName) {
+    if (grid == null)
+      return null;
+    RecursivePrefixTreeStrategy strategy = fieldStrategyMap.get(fieldName);
+    if (strategy == null) {
+      strategy = new RecursivePrefixTreeStrategy(grid, fieldName);
+      RecursivePrefixTreeStrategy existing = fieldStrategyMap.putIfAbsent(fieldName, strategy);
+      if (existing != null)
+        strategy = existing;
+    }
+    return strategy;
+  }
+
+  /** One of the FORMAT_ constants on {@link MultiPointEncoding}. */
+  public int getFormat() {
+    return format;
+  }
+
   /**
    * Normally called by Solr's {@link org.apache.solr.update.DocumentBuilder}.
    * It will also be called by {@link org.apache.solr.update.processor.MultiValUpdateRequestProcessorFactory}
    * given a SolrInputField which has access to multiple values. This is
    * arranged to circumvent DocumentBuilder's limitation.
    */
+  @Override
+  public List<IndexableField> createFields(SchemaField field, Object value, float boost) {
+    if (value instanceof EncodedPoints)//result of MultiValUpdateRequestProcessorFactory
+      return ((EncodedPoints) value).fields;
+    if (value instanceof IndexableField)//likewise
+      return Collections.singletonList((IndexableField) value);
+    double[] xy;
+    int count;
+    if (value instanceof SolrInputField) {
+      Collection<Object> values = ((SolrInputField) value).getValues();
+      xy = new double[values.size() * 2];
+      count = parsePoints(values, xy);
+    } else {
+      xy = new double[2];
+      parsePoint(value, xy, 0);
+      count = 1;
+    }
+    return createFields(field, xy, count);
+  }
+
   @Override
   public IndexableField createField(SchemaField field, Object value, float boost) {
+    List<IndexableField> fields = createFields(field, value, boost);
+    if (fields.size() != 1)
+      throw new IllegalStateException("Storage 'morton' and prefixTree have a field per point; use createFields");
+    return fields.get(0);
+  }
+
+  /**
+   * Creates the fields from the first {@code count} x,y pairs of {@code xy},
+   * which is reordered; see {@link #parsePoints(Collection, double[])}. There's
+   * one field, or with storage "morton", one per point; the DocValues come
+   * first, followed by the prefix tree's fields, if any.
+   */
+  public List<IndexableField> createFields(SchemaField field, double[] xy, int count) {
     if (field.stored())
       throw new SolrException(SolrException.ErrorCode.SERVER_ERROR, "This field" +
           "cannot be configured as stored: " + field);
-    List<Point> points;
-    if (value instanceof SolrInputField) {
-      SolrInputField inputField = ((SolrInputField) value);
-      points = new ArrayList<Point>(inputField.getValueCount());
-      for (Object iVal : inputField.getValues()) {
-        points.add(pointFromValue(iVal));
+    count = reducePoints(xy, count);
+    List<IndexableField> fields;
+    if (morton) {
+      Rectangle worldBounds = ctx.getWorldBounds();
+      fields = new ArrayList<IndexableField>(grid != null ? count * 2 : count);
+      for (int i = 0; i < count; i++) {
+        fields.add(new SortedNumericDocValuesField(field.getName(),
+            MultiPointEncoding.toMorton(xy[i * 2], xy[i * 2 + 1], worldBounds)));
       }
-    } else if (value instanceof IndexableField) {//result of MultiValUpdateRequestProcessorFactory
-      return (IndexableField) value;
     } else {
-      points = Collections.singletonList(pointFromValue(value));
+      int docFormat = format;
+      if (blockThreshold > 0 && count > blockThreshold)
+        docFormat = MultiPointEncoding.FORMAT_BLOCKED;
+      BytesRef bytes = MultiPointEncoding.pointsToBytes(xy, count, docFormat, precision);
+      IndexableField docValues = new BinaryDocValuesField(field.getName(), bytes);
+      if (grid == null)
+        return Collections.singletonList(docValues);
+      fields = new ArrayList<IndexableField>(count + 1);
+      fields.add(docValues);
     }
+    if (grid != null) {
+      RecursivePrefixTreeStrategy strategy = getStrategy(field.getName());
+      for (int i = 0; i < count; i++) {
+        Collections.addAll(fields, strategy.createIndexableFields(ctx.makePoint(xy[i * 2], xy[i * 2 + 1])));
+      }
+    }
+    return fields;
+  }
+
+  /**
+   * The fields of a document's points, as a single value of a SolrInputField
+   * so that Solr doesn't consider the field multi-valued.
+   */
+  public static final class EncodedPoints {
+    private final List<IndexableField> fields;
 
-    BytesRef bytes = MultiPointEncoding.pointsToBytes(points);
-    return new BinaryDocValuesField(field.getName(), bytes);
+    public EncodedPoints(List<IndexableField> fields) {
+      this.fields = fields;
+    }
   }
 
-  @Override
-  public UninvertingReader.Type getUninversionType(SchemaField sf) {
-    return null;
+  /** Applies snap, dedup and maxPoints, returning the new count. */
+  private int reducePoints(double[] xy, int count) {
+    final int originalCount = count;
+    if (snapDegrees > 0)
+      MultiPointEncoding.snapPairs(xy, count, snapDegrees, ctx.isGeo());
+    if (dedup)
+      count = MultiPointEncoding.dedupPairs(xy, count);
+    if (maxPoints > 0)
+      count = MultiPointEncoding.thinPairs(xy, count, maxPoints);
+    if (count < originalCount && log.isDebugEnabled())
+      log.debug("Reduced " + originalCount + " points to " + count + " for field type " + typeName);
+    return count;
   }
 
-  private Point pointFromValue(Object value) {
-    Point point;
+  /**
+   * Parses the values into x,y pairs in {@code xy}, which must hold two
+   * doubles per value, returning the number of points.
+   */
+  public int parsePoints(Collection<Object> values, double[] xy) {
+    int count = 0;
+    for (Object value : values) {
+      parsePoint(value, xy, count * 2);
+      count++;
+    }
+    return count;
+  }
+
+  /**
+   * Parses a {@link Point}, a "lat,lon" string, or a double[] or float[] of
+   * {lat, lon} into {@code xy[offset]} and {@code xy[offset + 1]}. Other
+   * strings are read as shapes by the {@link SpatialContext}.
+   */
+  private void parsePoint(Object value, double[] xy, int offset) {
+    double x, y;
     if (value instanceof Point) {
-      point = (Point) value;
+      x = ((Point) value).getX();
+      y = ((Point) value).getY();
+    } else if (value instanceof double[] && ((double[]) value).length == 2) {
+      y = ((double[]) value)[0];
+      x = ((double[]) value)[1];
+    } else if (value instanceof float[] && ((float[]) value).length == 2) {
+      y = ((float[]) value)[0];
+      x = ((float[]) value)[1];
     } else {
-      point = (Point) ctx.readShape(value.toString());
+      String str = value.toString();
+      //the common "lat,lon" form, without a round trip through a Shape
+      int comma = str.indexOf(',');
+      if (comma > 0 && str.indexOf(',', comma + 1) == -1 && parseDoubles(str, comma, xy, offset))
+        return;
+      Point point = (Point) ctx.readShape(str);
+      x = point.getX();
+      y = point.getY();
     }
-    return point;
+    ctx.verifyX(x);
+    ctx.verifyY(y);
+    xy[offset] = x;
+    xy[offset + 1] = y;
+  }
+
+  /** Parses "lat,lon" into x,y; false if they aren't plain numbers. */
+  private boolean parseDoubles(String str, int comma, double[] xy, int offset) {
+    double x, y;
+    try {
+      y = Double.parseDouble(str.substring(0, comma));
+      x = Double.parseDouble(str.substring(comma + 1));
+    } catch (NumberFormatException e) {
+      return false;
+    }
+    ctx.verifyX(x);
+    ctx.verifyY(y);
+    xy[offset] = x;
+    xy[offset + 1] = y;
+    return true;
+  }
+
+  @Override
+  public UninvertingReader.Type getUninversionType(SchemaField sf) {
+    return null;
   }
 
   @Override
@@ -121,7 +442,7 @@ public class MultiPointDocValuesField extends FieldType {
 
   @Override
   public SortField getSortField(SchemaField field, boolean top) {
-    throw new UnsupportedOperationException("Can't sort on this field type.");
+    throw new UnsupportedOperationException("Can't sort on this field type; sort by the distDV function instead.");
   }
 
 }
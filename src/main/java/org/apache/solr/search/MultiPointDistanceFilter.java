@@ -0,0 +1,170 @@
+package org.apache.solr.search;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import com.spatial4j.core.context.SpatialContext;
+import com.spatial4j.core.shape.Point;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.search.ConstantScoreQuery;
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.DocValuesDocIdSet;
+import org.apache.lucene.search.Filter;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.spatial.NearestPointFinder;
+import org.apache.lucene.util.Bits;
+import org.apache.solr.schema.MultiPointDocValuesField;
+import org.apache.solr.search.function.distance.MultiPointDocs;
+
+import java.io.IOException;
+
+/**
+ * A {@link PostFilter} passing documents with any point of a
+ * {@link org.apache.solr.schema.MultiPointDocValuesField} within a distance.
+ * Documents are rejected by their bounding box where the encoding has one,
+ * and the point scan stops at the first point within the distance.
+ * <p/>
+ * It's a post filter unless set to be cached; used as a query, or as a cached
+ * filter, it checks every document of the index instead of the matches of the
+ * other queries.
+ *
+ * @see MultiPointFilterQParserPlugin
+ */
+public class MultiPointDistanceFilter extends ExtendedQueryBase implements PostFilter {
+
+  private final String fieldName;
+  private final Point point;
+  private final double distance;
+  private final SpatialContext ctx;
+  private final MultiPointDocValuesField type;
+
+  /** @param distance in the units of the context's distance calculator */
+  public MultiPointDistanceFilter(String fieldName, Point point, double distance, SpatialContext ctx) {
+    this(fieldName, point, distance, ctx, null);
+  }
+
+  /** @param type of the field, for its storage and cache; may be null for a plain binary field */
+  public MultiPointDistanceFilter(String fieldName, Point point, double distance, SpatialContext ctx,
+                                  MultiPointDocValuesField type) {
+    this.fieldName = fieldName;
+    this.point = point;
+    this.distance = distance;
+    this.ctx = ctx;
+    this.type = type;
+    setCache(false);
+  }
+
+  @Override
+  public int getCost() {
+    return Math.max(super.getCost(), 100);//at least 100 to be a post filter
+  }
+
+  @Override
+  public DelegatingCollector getFilterCollector(IndexSearcher searcher) {
+    final NearestPointFinder finder = new NearestPointFinder(point, ctx);
+    return new DelegatingCollector() {
+      private MultiPointDocs docs;
+
+      @Override
+      protected void doSetNextReader(LeafReaderContext context) throws IOException {
+        super.doSetNextReader(context);
+        docs = MultiPointDocs.get(context.reader(), fieldName, type, false);
+      }
+
+      @Override
+      public void collect(int doc) throws IOException {
+        if (docs != null && docs.anyWithin(finder, doc, distance))
+          super.collect(doc);
+      }
+    };
+  }
+
+  /** A constant score query over the documents of each segment passing the filter. */
+  @Override
+  public Query rewrite(IndexReader reader) throws IOException {
+    Query query = new ConstantScoreQuery(new ScanFilter());
+    query.setBoost(getBoost());
+    return query;
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) return true;
+    if (o == null || getClass() != o.getClass()) return false;
+
+    MultiPointDistanceFilter that = (MultiPointDistanceFilter) o;
+
+    if (!fieldName.equals(that.fieldName)) return false;
+    if (!point.equals(that.point)) return false;
+    if (Double.compare(distance, that.distance) != 0) return false;
+
+    return true;
+  }
+
+  @Override
+  public int hashCode() {
+    int result = fieldName.hashCode();
+    result = 31 * result + point.hashCode();
+    long temp = Double.doubleToLongBits(distance);
+    result = 31 * result + (int) (temp ^ (temp >>> 32));
+    return result;
+  }
+
+  @Override
+  public String toString(String field) {
+    return "mpdvfilt(" + fieldName + "," + point + "," + distance + ")";
+  }
+
+  /** Checks each document of the segment in turn. */
+  private class ScanFilter extends Filter {
+
+    @Override
+    public DocIdSet getDocIdSet(LeafReaderContext context, Bits acceptDocs) throws IOException {
+      final MultiPointDocs docs = MultiPointDocs.get(context.reader(), fieldName, type, false);
+      if (docs == null)
+        return null;
+      final NearestPointFinder finder = new NearestPointFinder(point, ctx);
+      return new DocValuesDocIdSet(context.reader().maxDoc(), acceptDocs) {
+        @Override
+        protected boolean matchDoc(int doc) {
+          return docs.anyWithin(finder, doc, distance);
+        }
+      };
+    }
+
+    private MultiPointDistanceFilter outer() {
+      return MultiPointDistanceFilter.this;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      return o instanceof ScanFilter && super.equals(o) && outer().equals(((ScanFilter) o).outer());
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * super.hashCode() + outer().hashCode();
+    }
+
+    @Override
+    public String toString(String field) {
+      return outer().toString(field);
+    }
+  }
+}
@@ -0,0 +1,99 @@
+package org.apache.solr.search;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import com.spatial4j.core.context.SpatialContext;
+import com.spatial4j.core.distance.DistanceUtils;
+import com.spatial4j.core.shape.Point;
+import org.apache.lucene.search.Query;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.schema.FieldType;
+import org.apache.solr.schema.MultiPointDocValuesField;
+import org.apache.solr.schema.SchemaField;
+
+/**
+ * Matches documents having any point of a {@link MultiPointDocValuesField}
+ * within a distance of a query point:
+ * <code>fq={!mpdvfilt field=pointsDV pt=lat,lon d=10}</code>; "sfield" may
+ * stand for "field", and "d" may also be a request param. Only one "pt" is
+ * used.
+ * <p/>
+ * It doesn't search the field's prefix tree, if any, so it's a
+ * {@link PostFilter}; it only looks at documents that matched the query and
+ * all the cheaper filters.
+ * Its cost defaults to {@link #DEFAULT_COST} and is never below 100. With
+ * cache=true, or as the main query, it checks every document of the index.
+ */
+public class MultiPointFilterQParserPlugin extends QParserPlugin {
+
+  public static final String NAME = "mpdvfilt";
+
+  public static final int DEFAULT_COST = 200;
+
+  @Override
+  public void init(NamedList args) {
+  }
+
+  @Override
+  public QParser createParser(String qstr, SolrParams localParams, SolrParams params, SolrQueryRequest req) {
+    return new QParser(qstr, localParams, params, req) {
+      @Override
+      public Query parse() throws SyntaxError {
+        String fieldName = getParam("field");
+        if (fieldName == null)
+          fieldName = getParam("sfield");
+        if (fieldName == null)
+          throw new SyntaxError(NAME + " requires a 'field'");
+        SchemaField field = req.getSchema().getField(fieldName);
+        FieldType type = field.getType();
+        if (!(type instanceof MultiPointDocValuesField))
+          throw new SyntaxError(NAME + " only supports fields of type "+
+              MultiPointDocValuesField.class.getName()+", not "+type.getClass().getName());
+        MultiPointDocValuesField mpdvFieldType = (MultiPointDocValuesField) type;
+
+        String ptStr = getParam("pt");
+        if (ptStr == null)
+          throw new SyntaxError(NAME + " requires a 'pt'");
+        Point point = mpdvFieldType.parseLatLon(ptStr);
+
+        String distStr = getParam("d");
+        if (distStr == null)
+          throw new SyntaxError(NAME + " requires a distance 'd'");
+        double dist;
+        try {
+          dist = Double.parseDouble(distStr);
+        } catch (NumberFormatException e) {
+          throw new SyntaxError("Bad distance 'd': " + distStr, e);
+        }
+        if (dist < 0)
+          throw new SolrException(SolrException.ErrorCode.BAD_REQUEST, "Distance 'd' must not be negative: " + dist);
+
+        SpatialContext ctx = mpdvFieldType.getCtx();
+        if (ctx.isGeo())
+          dist = DistanceUtils.dist2Degrees(dist, DistanceUtils.EARTH_MEAN_RADIUS_KM);
+
+        MultiPointDistanceFilter filter = new MultiPointDistanceFilter(fieldName, point, dist, ctx, mpdvFieldType);
+        filter.setCost(localParams != null ? localParams.getInt("cost", DEFAULT_COST) : DEFAULT_COST);
+        return filter;
+      }
+    };
+  }
+}
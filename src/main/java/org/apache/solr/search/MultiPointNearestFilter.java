@@ -0,0 +1,233 @@
+package org.apache.solr.search;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import com.spatial4j.core.context.SpatialContext;
+import com.spatial4j.core.shape.Point;
+import com.spatial4j.core.shape.Rectangle;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexReaderContext;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.ReaderUtil;
+import org.apache.lucene.search.BitsFilteredDocIdSet;
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.Filter;
+import org.apache.lucene.spatial.NearestPointFinder;
+import org.apache.lucene.spatial.prefix.RecursivePrefixTreeStrategy;
+import org.apache.lucene.spatial.query.SpatialArgs;
+import org.apache.lucene.spatial.query.SpatialOperation;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.BitDocIdSet;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.FixedBitSet;
+import org.apache.solr.schema.MultiPointDocValuesField;
+import org.apache.solr.search.function.distance.MultiPointDocs;
+
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Passes the {@code k} documents nearest to a point, by the nearest of their
+ * points in a {@link MultiPointDocValuesField} that's also indexed in a prefix
+ * tree. The tree's terms find the candidates within a circle around the point,
+ * whose exact distances are then calculated from the DocValues. The circle
+ * grows until at least {@code k} candidates are within it, so only the nearby
+ * documents are looked at. Each ring grows the radius by the square root of
+ * the shortfall, as though the documents were spread evenly, but by between
+ * 1.5 and 4 times. Documents tied with the k-th nearest pass too.
+ * <p/>
+ * The documents are found for the whole index at once, on the first segment
+ * asked for, and kept for the others.
+ *
+ * @see MultiPointNearestQParserPlugin
+ */
+public class MultiPointNearestFilter extends Filter {
+
+  private final String fieldName;
+  private final Point point;
+  private final int k;
+  private final double maxDistance;
+  private final double startDistance;
+  private final MultiPointDocValuesField type;
+
+  private WeakReference<IndexReader> nearestReader;//of nearest
+  private FixedBitSet[] nearest;//by leaf ord; null entries have none
+
+  /**
+   * @param maxDistance   beyond which documents never pass
+   * @param startDistance the radius of the first ring; if not positive, the
+   *                      size of a cell half way down the prefix tree
+   * @param type          of the field, which must have a prefix tree
+   */
+  public MultiPointNearestFilter(String fieldName, Point point, int k, double maxDistance, double startDistance,
+                                 MultiPointDocValuesField type) {
+    if (type.getGrid() == null)
+      throw new IllegalArgumentException("Field type isn't indexed with a prefix tree: " + type.getTypeName());
+    this.fieldName = fieldName;
+    this.point = point;
+    this.k = k;
+    this.maxDistance = maxDistance;
+    this.startDistance = startDistance;
+    this.type = type;
+  }
+
+  @Override
+  public DocIdSet getDocIdSet(LeafReaderContext context, Bits acceptDocs) throws IOException {
+    FixedBitSet bits = nearest(ReaderUtil.getTopLevelContext(context))[context.ord];
+    if (bits == null)
+      return null;
+    return BitsFilteredDocIdSet.wrap(new BitDocIdSet(bits), acceptDocs);
+  }
+
+  private synchronized FixedBitSet[] nearest(IndexReaderContext top) throws IOException {
+    if (nearestReader == null || nearestReader.get() != top.reader()) {
+      nearest = findNearest(top.leaves());
+      nearestReader = new WeakReference<IndexReader>(top.reader());
+    }
+    return nearest;
+  }
+
+  private FixedBitSet[] findNearest(List<LeafReaderContext> leaves) throws IOException {
+    final SpatialContext ctx = type.getCtx();
+    final RecursivePrefixTreeStrategy strategy = type.getStrategy(fieldName);
+    final NearestPointFinder finder = new NearestPointFinder(point, ctx);
+    final double limit = Math.min(maxDistance, worldDistance(ctx));
+    final MultiPointDocs[] docs = new MultiPointDocs[leaves.size()];
+    final FixedBitSet[] seen = new FixedBitSet[leaves.size()];
+    for (LeafReaderContext leaf : leaves) {
+      docs[leaf.ord] = MultiPointDocs.get(leaf.reader(), fieldName, type, false);
+      if (docs[leaf.ord] != null)
+        seen[leaf.ord] = new FixedBitSet(leaf.reader().maxDoc());
+    }
+
+    //the candidates so far, and their exact distances
+    int[] candidateLeaves = new int[16];
+    int[] candidateDocs = new int[16];
+    double[] candidateDistances = new double[16];
+    int candidates = 0;
+
+    double radius = Math.min(startDistance > 0 ? startDistance
+        : type.getGrid().getDistanceForLevel(Math.max(1, type.getGrid().getMaxLevels() / 2)), limit);
+    while (true) {
+      Filter ring = strategy.makeFilter(new SpatialArgs(SpatialOperation.Intersects, ctx.makeCircle(point, radius)));
+      for (LeafReaderContext leaf : leaves) {
+        if (docs[leaf.ord] == null)
+          continue;
+        DocIdSet set = ring.getDocIdSet(leaf, leaf.reader().getLiveDocs());
+        DocIdSetIterator it = set != null ? set.iterator() : null;
+        if (it == null)
+          continue;
+        for (int doc = it.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = it.nextDoc()) {
+          if (seen[leaf.ord].getAndSet(doc))
+            continue;//from an inner ring
+          if (candidates == candidateDocs.length) {
+            candidateLeaves = ArrayUtil.grow(candidateLeaves);
+            candidateDocs = ArrayUtil.grow(candidateDocs);
+            candidateDistances = ArrayUtil.grow(candidateDistances);
+          }
+          candidateLeaves[candidates] = leaf.ord;
+          candidateDocs[candidates] = doc;
+          candidateDistances[candidates] = docs[leaf.ord].minDistance(finder, doc, Double.MAX_VALUE);
+          candidates++;
+        }
+      }
+      int within = countWithin(candidateDistances, candidates, radius);
+      if (within >= k || radius >= limit)
+        break;
+      double growth = within == 0 ? 4 : Math.sqrt((double) k / within);
+      radius = Math.min(radius * Math.max(1.5, Math.min(4, growth)), limit);
+    }
+
+    //the k nearest within the radius, and ties
+    double[] distances = new double[candidates];
+    int within = 0;
+    for (int i = 0; i < candidates; i++) {
+      if (candidateDistances[i] <= radius)
+        distances[within++] = candidateDistances[i];
+    }
+    if (within == 0)
+      return new FixedBitSet[leaves.size()];
+    Arrays.sort(distances, 0, within);
+    final double cutoff = distances[Math.min(k, within) - 1];
+
+    FixedBitSet[] result = new FixedBitSet[leaves.size()];
+    for (int i = 0; i < candidates; i++) {
+      if (candidateDistances[i] <= cutoff) {
+        int ord = candidateLeaves[i];
+        if (result[ord] == null)
+          result[ord] = new FixedBitSet(seen[ord].length());
+        result[ord].set(candidateDocs[i]);
+      }
+    }
+    return result;
+  }
+
+  private static int countWithin(double[] distances, int count, double radius) {
+    int within = 0;
+    for (int i = 0; i < count; i++) {
+      if (distances[i] <= radius)
+        within++;
+    }
+    return within;
+  }
+
+  /** A distance at least as far as any point in the world is from another. */
+  private static double worldDistance(SpatialContext ctx) {
+    if (ctx.isGeo())
+      return 180;
+    Rectangle world = ctx.getWorldBounds();
+    return ctx.getDistCalc().distance(ctx.makePoint(world.getMinX(), world.getMinY()),
+        world.getMaxX(), world.getMaxY());
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) return true;
+    if (o == null || getClass() != o.getClass()) return false;
+
+    MultiPointNearestFilter that = (MultiPointNearestFilter) o;
+
+    if (k != that.k) return false;
+    if (Double.compare(maxDistance, that.maxDistance) != 0) return false;
+    if (Double.compare(startDistance, that.startDistance) != 0) return false;
+    if (!fieldName.equals(that.fieldName)) return false;
+    if (!point.equals(that.point)) return false;
+
+    return true;
+  }
+
+  @Override
+  public int hashCode() {
+    int result = fieldName.hashCode();
+    result = 31 * result + point.hashCode();
+    result = 31 * result + k;
+    long temp = Double.doubleToLongBits(maxDistance);
+    result = 31 * result + (int) (temp ^ (temp >>> 32));
+    temp = Double.doubleToLongBits(startDistance);
+    result = 31 * result + (int) (temp ^ (temp >>> 32));
+    return result;
+  }
+
+  @Override
+  public String toString(String field) {
+    return "mpdvnear(" + fieldName + "," + point + ",k=" + k + ")";
+  }
+}
@@ -0,0 +1,112 @@
+package org.apache.solr.search;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import com.spatial4j.core.context.SpatialContext;
+import com.spatial4j.core.distance.DistanceUtils;
+import com.spatial4j.core.shape.Point;
+import org.apache.lucene.search.ConstantScoreQuery;
+import org.apache.lucene.search.Query;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.schema.FieldType;
+import org.apache.solr.schema.MultiPointDocValuesField;
+
+/**
+ * Matches the {@code k} documents with the nearest points of a
+ * {@link MultiPointDocValuesField} indexed with a "prefixTree":
+ * <code>q={!mpdvnear sfield=pointsDV pt=lat,lon k=10}&amp;sort=distDV(pointsDV,"lat,lon") asc</code>.
+ * The optional "d" limits the distance, and "r" is the radius of the first
+ * ring searched; see
+ * {@link MultiPointNearestFilter}. Documents tied with the k-th are included.
+ * <p/>
+ * The k nearest are of all the documents; as a query, filters then remove some
+ * of them rather than bring in the next nearest.
+ */
+public class MultiPointNearestQParserPlugin extends QParserPlugin {
+
+  public static final String NAME = "mpdvnear";
+
+  public static final int DEFAULT_K = 10;
+
+  @Override
+  public void init(NamedList args) {
+  }
+
+  @Override
+  public QParser createParser(String qstr, SolrParams localParams, SolrParams params, SolrQueryRequest req) {
+    return new QParser(qstr, localParams, params, req) {
+      @Override
+      public Query parse() throws SyntaxError {
+        String fieldName = getParam("field");
+        if (fieldName == null)
+          fieldName = getParam("sfield");
+        if (fieldName == null)
+          throw new SyntaxError(NAME + " requires a 'field'");
+        FieldType type = req.getSchema().getField(fieldName).getType();
+        if (!(type instanceof MultiPointDocValuesField))
+          throw new SyntaxError(NAME + " only supports fields of type "+
+              MultiPointDocValuesField.class.getName()+", not "+type.getClass().getName());
+        MultiPointDocValuesField mpdvFieldType = (MultiPointDocValuesField) type;
+        if (mpdvFieldType.getGrid() == null)
+          throw new SolrException(SolrException.ErrorCode.BAD_REQUEST, NAME + " requires field " + fieldName
+              + " to be indexed with a 'prefixTree'");
+
+        String ptStr = getParam("pt");
+        if (ptStr == null)
+          throw new SyntaxError(NAME + " requires a 'pt'");
+        Point point = mpdvFieldType.parseLatLon(ptStr);
+
+        int k;
+        try {
+          k = Integer.parseInt(getParam("k") != null ? getParam("k") : Integer.toString(DEFAULT_K));
+        } catch (NumberFormatException e) {
+          throw new SyntaxError("Bad 'k': " + getParam("k"), e);
+        }
+        if (k < 1)
+          throw new SolrException(SolrException.ErrorCode.BAD_REQUEST, "'k' must be positive: " + k);
+
+        SpatialContext ctx = mpdvFieldType.getCtx();
+        double maxDistance = parseDistance("d", ctx);
+        double startDistance = parseDistance("r", ctx);
+        MultiPointNearestFilter filter = new MultiPointNearestFilter(fieldName, point, k,
+            maxDistance >= 0 ? maxDistance : Double.MAX_VALUE, startDistance, mpdvFieldType);
+        return new ConstantScoreQuery(filter);
+      }
+
+      /** The distance in degrees for geospatial contexts, or -1 if not given. */
+      private double parseDistance(String param, SpatialContext ctx) throws SyntaxError {
+        String distStr = getParam(param);
+        if (distStr == null)
+          return -1;
+        double dist;
+        try {
+          dist = Double.parseDouble(distStr);
+        } catch (NumberFormatException e) {
+          throw new SyntaxError("Bad distance '" + param + "': " + distStr, e);
+        }
+        if (dist < 0)
+          throw new SolrException(SolrException.ErrorCode.BAD_REQUEST, "Distance '" + param
+              + "' must not be negative: " + dist);
+        return ctx.isGeo() ? DistanceUtils.dist2Degrees(dist, DistanceUtils.EARTH_MEAN_RADIUS_KM) : dist;
+      }
+    };
+  }
+}
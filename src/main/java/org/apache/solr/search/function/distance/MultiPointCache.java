@@ -0,0 +1,267 @@
+package org.apache.solr.search.function.distance;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.spatial.MultiPointCursor;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.common.util.SimpleOrderedMap;
+import org.apache.solr.schema.MultiPointDocValuesField;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Caches the decoded points of a {@link MultiPointDocValuesField} per segment,
+ * so that repeated distance queries scan flat arrays instead of reading and
+ * decoding the DocValues every time. Entries are keyed by the segment's core
+ * (so deletions don't invalidate them), dropped when the core closes, and
+ * evicted least-recently-used first to stay within a budget of bytes. A
+ * segment too big for the budget on its own is found to be so by counting its
+ * points before decoding any, and remembered, so that it's read from the
+ * DocValues directly rather than decoded for nothing. Thread-safe.
+ */
+public class MultiPointCache implements LeafReader.CoreClosedListener {
+
+  /**
+   * The points of one field in one segment: the points of document
+   * {@code doc} are at {@code xs[offsets[doc]]}, {@code ys[offsets[doc]]} up
+   * to {@code offsets[doc + 1]}. The coordinates are in separate arrays so
+   * that a document's can be processed by loops the JIT vectorizes.
+   */
+  public static class Points {
+    public final float[] xs;
+    public final float[] ys;
+    public final int[] offsets;
+
+    Points(float[] xs, float[] ys, int[] offsets) {
+      this.xs = xs;
+      this.ys = ys;
+      this.offsets = offsets;
+    }
+
+    public long ramBytesUsed() {
+      return ramBytesUsed(xs.length, offsets.length - 1);
+    }
+
+    static long ramBytesUsed(long points, int maxDoc) {
+      return 8L * points + 4L * (maxDoc + 1) + 96;//+ headers, roughly
+    }
+  }
+
+  private final long maxRamBytes;
+  //guarded by 'this'
+  private final LinkedHashMap<Key, Points> entries = new LinkedHashMap<Key, Points>(16, 0.75f, true);
+  private final Set<Key> tooBig = new HashSet<Key>();
+  private final Set<Object> listening = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());//core keys
+  private long ramBytesUsed;
+  private long hits;
+  private long misses;
+  private long evictions;
+
+  public MultiPointCache(long maxRamBytes) {
+    this.maxRamBytes = maxRamBytes;
+  }
+
+  /**
+   * Returns the points of the field in the segment, decoding and caching them
+   * if needed. Null if the segment has no such DocValues, or if they don't fit
+   * in the cache.
+   */
+  public Points get(LeafReader reader, String field, MultiPointDocValuesField type) throws IOException {
+    final Key key = new Key(reader.getCoreCacheKey(), field);
+    synchronized (this) {
+      Points points = entries.get(key);
+      if (points != null) {
+        hits++;
+        return points;
+      }
+      misses++;
+      if (tooBig.contains(key))
+        return null;
+    }
+    //decode outside of the lock; concurrent misses on the same key just duplicate work
+    MultiPointDocs docs = MultiPointDocs.getUncached(reader, field, type);
+    if (docs == null)
+      return null;
+    int[] offsets = offsets(docs, reader.maxDoc(), maxRamBytes);
+    if (offsets == null) {
+      synchronized (this) {
+        tooBig.add(key);
+      }
+      listen(reader);
+      return null;
+    }
+    Points points = decode(docs, offsets);
+    put(key, points);
+    listen(reader);
+    return points;
+  }
+
+  private void listen(LeafReader reader) {
+    boolean added;
+    synchronized (this) {
+      added = listening.add(reader.getCoreCacheKey());
+    }
+    if (added)
+      reader.addCoreClosedListener(this);
+  }
+
+  /** The points of the field in the segment if cached, else null. */
+  public synchronized Points getIfPresent(LeafReader reader, String field) {
+    return entries.get(new Key(reader.getCoreCacheKey(), field));
+  }
+
+  /**
+   * Where the points of each document would start once decoded, by reading
+   * the number of them, or null if they'd take more than {@code maxRamBytes}.
+   */
+  static int[] offsets(MultiPointDocs docs, int maxDoc, long maxRamBytes) {
+    if (Points.ramBytesUsed(0, maxDoc) > maxRamBytes)
+      return null;
+    int[] offsets = new int[maxDoc + 1];
+    long upto = 0;
+    for (int doc = 0; doc < maxDoc; doc++) {
+      offsets[doc] = (int) upto;
+      upto += docs.cursor(doc).size();
+      if (upto > Integer.MAX_VALUE - 8 || Points.ramBytesUsed(upto, maxDoc) > maxRamBytes)
+        return null;
+    }
+    offsets[maxDoc] = (int) upto;
+    return offsets;
+  }
+
+  static Points decode(MultiPointDocs docs, int[] offsets) {
+    final int maxDoc = offsets.length - 1;
+    float[] xs = new float[offsets[maxDoc]];
+    float[] ys = new float[xs.length];
+    int upto = 0;
+    for (int doc = 0; doc < maxDoc; doc++) {
+      MultiPointCursor cursor = docs.cursor(doc);
+      while (cursor.next()) {
+        xs[upto] = cursor.getX();
+        ys[upto] = cursor.getY();
+        upto++;
+      }
+    }
+    return new Points(xs, ys, offsets);
+  }
+
+  private synchronized void put(Key key, Points points) {
+    long bytes = points.ramBytesUsed();
+    Points old = entries.put(key, points);
+    if (old != null)
+      ramBytesUsed -= old.ramBytesUsed();
+    ramBytesUsed += bytes;
+    Iterator<Points> it = entries.values().iterator();
+    while (ramBytesUsed > maxRamBytes && it.hasNext()) {
+      ramBytesUsed -= it.next().ramBytesUsed();
+      it.remove();
+      evictions++;
+    }
+  }
+
+  @Override
+  public synchronized void onClose(Object ownerCoreCacheKey) {
+    Iterator<Map.Entry<Key, Points>> it = entries.entrySet().iterator();
+    while (it.hasNext()) {
+      Map.Entry<Key, Points> entry = it.next();
+      if (entry.getKey().coreKey == ownerCoreCacheKey) {
+        ramBytesUsed -= entry.getValue().ramBytesUsed();
+        it.remove();
+      }
+    }
+    Iterator<Key> tooBigIt = tooBig.iterator();
+    while (tooBigIt.hasNext()) {
+      if (tooBigIt.next().coreKey == ownerCoreCacheKey)
+        tooBigIt.remove();
+    }
+    listening.remove(ownerCoreCacheKey);
+  }
+
+  public synchronized void clear() {
+    entries.clear();
+    tooBig.clear();
+    ramBytesUsed = 0;
+  }
+
+  public long getMaxRamBytes() {
+    return maxRamBytes;
+  }
+
+  public synchronized long ramBytesUsed() {
+    return ramBytesUsed;
+  }
+
+  public synchronized int size() {
+    return entries.size();
+  }
+
+  public synchronized long getHits() {
+    return hits;
+  }
+
+  public synchronized long getMisses() {
+    return misses;
+  }
+
+  public synchronized long getEvictions() {
+    return evictions;
+  }
+
+  public synchronized NamedList<Object> getStatistics() {
+    NamedList<Object> stats = new SimpleOrderedMap<Object>();
+    stats.add("entries", entries.size());
+    stats.add("ramBytesUsed", ramBytesUsed);
+    stats.add("maxRamBytes", maxRamBytes);
+    stats.add("tooBig", tooBig.size());
+    stats.add("hits", hits);
+    stats.add("misses", misses);
+    stats.add("evictions", evictions);
+    return stats;
+  }
+
+  private static class Key {
+    final Object coreKey;
+    final String field;
+
+    Key(Object coreKey, String field) {
+      this.coreKey = coreKey;
+      this.field = field;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) return true;
+      if (!(o instanceof Key)) return false;
+      Key that = (Key) o;
+      return coreKey == that.coreKey && field.equals(that.field);
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * System.identityHashCode(coreKey) + field.hashCode();
+    }
+  }
+}
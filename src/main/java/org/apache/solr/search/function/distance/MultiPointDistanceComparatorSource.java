@@ -0,0 +1,128 @@
+package org.apache.solr.search.function.distance;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.search.FieldComparator;
+import org.apache.lucene.search.FieldComparatorSource;
+import org.apache.lucene.search.SimpleFieldComparator;
+import org.apache.lucene.spatial.NearestPointFinder;
+
+import java.io.IOException;
+
+/**
+ * Sorts documents by {@link MultiPointDistanceValueSource}. When sorting
+ * nearest first, the distance of the bottom of the queue is passed to the
+ * {@link NearestPointFinder} so that a document is abandoned as soon as it's
+ * clear that it can't be competitive. Documents without points are treated as
+ * infinitely far away.
+ */
+public class MultiPointDistanceComparatorSource extends FieldComparatorSource {
+
+  private final MultiPointDistanceValueSource valueSource;
+
+  public MultiPointDistanceComparatorSource(MultiPointDistanceValueSource valueSource) {
+    this.valueSource = valueSource;
+  }
+
+  @Override
+  public FieldComparator<?> newComparator(String fieldname, int numHits, int sortPos, boolean reversed) throws IOException {
+    return new DistanceComparator(numHits, !reversed);
+  }
+
+  private class DistanceComparator extends SimpleFieldComparator<Double> {
+    private final double[] values;
+    private final boolean prune;
+    private double bottom;
+    private double topValue;
+
+    private MultiPointDocs docs;
+    private NearestPointFinder finder;
+    private MultiPointDistanceStats.Segment segment;//null if not recorded
+    //compareBottom() is followed by copy() for competitive docs
+    private int lastDoc = -1;
+    private double lastVal;
+
+    DistanceComparator(int numHits, boolean prune) {
+      this.values = new double[numHits];
+      this.prune = prune;
+    }
+
+    @Override
+    protected void doSetNextReader(LeafReaderContext context) throws IOException {
+      if (segment != null)
+        segment.close();
+      docs = valueSource.getDocs(context.reader());
+      finder = valueSource.newFinder();
+      segment = valueSource.recordSegment(finder);
+      lastDoc = -1;
+    }
+
+    /**
+     * The distance for the doc, which is exact if it's within maxDistance and
+     * is otherwise just known to be greater.
+     */
+    private double distance(int doc, double maxDistance) {
+      if (doc == lastDoc && (lastVal <= maxDistance || lastVal == Double.MAX_VALUE))
+        return lastVal;
+      double val = Double.MAX_VALUE;
+      if (docs != null)
+        val = valueSource.minDistance(docs, finder, doc, maxDistance, segment);
+      if (val <= maxDistance || val == Double.MAX_VALUE) {//exact
+        lastDoc = doc;
+        lastVal = val;
+      }
+      return val;
+    }
+
+    @Override
+    public int compare(int slot1, int slot2) {
+      return Double.compare(values[slot1], values[slot2]);
+    }
+
+    @Override
+    public void setBottom(int slot) {
+      bottom = values[slot];
+    }
+
+    @Override
+    public int compareBottom(int doc) throws IOException {
+      return Double.compare(bottom, distance(doc, prune ? bottom : Double.MAX_VALUE));
+    }
+
+    @Override
+    public void copy(int slot, int doc) throws IOException {
+      values[slot] = distance(doc, Double.MAX_VALUE);
+    }
+
+    @Override
+    public void setTopValue(Double value) {
+      topValue = value;
+    }
+
+    @Override
+    public int compareTop(int doc) throws IOException {
+      return Double.compare(topValue, distance(doc, Double.MAX_VALUE));
+    }
+
+    @Override
+    public Double value(int slot) {
+      return values[slot];
+    }
+  }
+}
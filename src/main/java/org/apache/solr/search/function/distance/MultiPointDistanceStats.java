@@ -0,0 +1,140 @@
+package org.apache.solr.search.function.distance;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import org.apache.lucene.spatial.NearestPointFinder;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.common.util.SimpleOrderedMap;
+
+import java.io.Closeable;
+
+/**
+ * Statistics of the distance evaluation of {@link MultiPointDistanceValueSource}s,
+ * as published by {@link MultiPointDistanceValueSourceParser}. A segment is
+ * counted in plain fields by the thread evaluating it, and timed once, and
+ * the totals are added to {@link StripedCounter}s when it's finished, so that
+ * the cost per document is a couple of increments.
+ */
+public class MultiPointDistanceStats {
+
+  /**
+   * Buckets of the points per document histogram: 0, 1, 2-3, 4-7 and so on
+   * by powers of 2; the last is open ended.
+   */
+  static final int HISTOGRAM_BUCKETS = 16;
+
+  private final StripedCounter segments = new StripedCounter();
+  private final StripedCounter docsEvaluated = new StripedCounter();
+  private final StripedCounter docsPruned = new StripedCounter();
+  private final StripedCounter pointsScanned = new StripedCounter();
+  private final StripedCounter nanos = new StripedCounter();
+  private final StripedCounter[] pointsPerDoc = new StripedCounter[HISTOGRAM_BUCKETS];
+
+  public MultiPointDistanceStats() {
+    for (int i = 0; i < pointsPerDoc.length; i++) {
+      pointsPerDoc[i] = new StripedCounter();
+    }
+  }
+
+  /** Called when starting on a segment, with the finder that will evaluate it. */
+  Segment newSegment(NearestPointFinder finder) {
+    return new Segment(finder);
+  }
+
+  /**
+   * The evaluation of one segment, by one thread at a time. The elapsed time
+   * is from its creation to {@link #close()}, and the points scanned are
+   * those of the finder.
+   */
+  final class Segment implements Closeable {
+    private final NearestPointFinder finder;
+    private final long start = System.nanoTime();
+    private final long scannedBefore;
+    private final long[] pointsPerDoc = new long[HISTOGRAM_BUCKETS];
+    private long docs;
+    private long pruned;
+    private boolean finished;
+
+    private Segment(NearestPointFinder finder) {
+      this.finder = finder;
+      this.scannedBefore = finder.getPointsScanned();
+    }
+
+    /**
+     * Called for each document evaluated.
+     *
+     * @param points  the number of points of the document
+     * @param pruned  whether it was abandoned as being too far away
+     */
+    void recordDoc(int points, boolean pruned) {
+      docs++;
+      if (pruned)
+        this.pruned++;
+      pointsPerDoc[bucket(points)]++;
+    }
+
+    /** Adds the segment to the statistics; later calls do nothing. */
+    @Override
+    public void close() {
+      if (finished)
+        return;
+      finished = true;
+      segments.increment();
+      docsEvaluated.add(docs);
+      docsPruned.add(pruned);
+      pointsScanned.add(finder.getPointsScanned() - scannedBefore);
+      nanos.add(System.nanoTime() - start);
+      for (int i = 0; i < HISTOGRAM_BUCKETS; i++) {
+        if (pointsPerDoc[i] != 0)
+          MultiPointDistanceStats.this.pointsPerDoc[i].add(pointsPerDoc[i]);
+      }
+    }
+  }
+
+  static int bucket(int points) {
+    return Math.min(32 - Integer.numberOfLeadingZeros(points), HISTOGRAM_BUCKETS - 1);
+  }
+
+  public NamedList<Object> getStatistics() {
+    NamedList<Object> stats = new SimpleOrderedMap<Object>();
+    long segments = this.segments.sum();
+    long docs = docsEvaluated.sum();
+    long nanos = this.nanos.sum();
+    stats.add("segments", segments);
+    stats.add("docsEvaluated", docs);
+    stats.add("docsPruned", docsPruned.sum());
+    stats.add("pointsScanned", pointsScanned.sum());
+    stats.add("evalNanos", nanos);
+    stats.add("avgNanosPerSegment", segments > 0 ? nanos / segments : 0);
+    stats.add("avgNanosPerDoc", docs > 0 ? nanos / docs : 0);
+    NamedList<Long> histogram = new SimpleOrderedMap<Long>();
+    for (int i = 0; i < HISTOGRAM_BUCKETS; i++) {
+      long lower = i == 0 ? 0 : 1L << (i - 1);
+      String label;
+      if (i == HISTOGRAM_BUCKETS - 1)
+        label = lower + "+";
+      else if (i <= 1)
+        label = Long.toString(lower);
+      else
+        label = lower + "-" + ((1L << i) - 1);
+      histogram.add(label, pointsPerDoc[i].sum());
+    }
+    stats.add("pointsPerDoc", histogram);
+    return stats;
+  }
+}
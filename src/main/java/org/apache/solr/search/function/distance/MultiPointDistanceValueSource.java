@@ -0,0 +1,293 @@
+package org.apache.solr.search.function.distance;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import com.spatial4j.core.context.SpatialContext;
+import com.spatial4j.core.shape.Point;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.queries.function.FunctionValues;
+import org.apache.lucene.queries.function.ValueSource;
+import org.apache.lucene.queries.function.docvalues.DoubleDocValues;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.SortField;
+import org.apache.lucene.spatial.NearestPointFinder;
+import org.apache.solr.request.SolrRequestInfo;
+import org.apache.solr.schema.MultiPointDocValuesField;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+/**
+ * The distance from a point to the nearest of the points in a
+ * {@link MultiPointDocValuesField}. Given several points, it's the smallest
+ * distance from any of them, found in one pass over each document's points.
+ *
+ * @see MultiPointDistanceValueSourceParser
+ */
+public class MultiPointDistanceValueSource extends ValueSource {
+
+  private static final Logger log = LoggerFactory.getLogger(MultiPointDistanceValueSource.class);
+
+  private final String fieldName;
+  private final Point[] points;
+  private final SpatialContext ctx;
+  private final boolean approximate;
+  private final MultiPointDocValuesField type;//null for a plain binary field
+  private final MultiPointDistanceStats stats;//null if not recorded
+  private final Object segmentKey = new Object();//of the recording in the context
+  private Executor executor;//null unless parallel
+  private int maxConcurrency;
+
+  public MultiPointDistanceValueSource(String fieldName, Point point, SpatialContext ctx) {
+    this.fieldName = fieldName;
+    this.points = new Point[]{point};
+    this.ctx = ctx;
+    this.approximate = false;
+    this.type = null;
+    this.stats = null;
+  }
+
+  /**
+   * @param type        of the field, for its storage and cache
+   * @param approximate see {@link NearestPointFinder#NearestPointFinder(Point[], SpatialContext, boolean)}
+   */
+  public MultiPointDistanceValueSource(String fieldName, Point[] points, MultiPointDocValuesField type,
+                                       boolean approximate) {
+    this(fieldName, points, type, approximate, null);
+  }
+
+  /** @param stats to record the evaluation in; may be null */
+  public MultiPointDistanceValueSource(String fieldName, Point[] points, MultiPointDocValuesField type,
+                                       boolean approximate, MultiPointDistanceStats stats) {
+    this.fieldName = fieldName;
+    this.points = points.clone();
+    this.ctx = type.getCtx();
+    this.approximate = approximate;
+    this.type = type;
+    this.stats = stats;
+  }
+
+  public String getFieldName() {
+    return fieldName;
+  }
+
+  /** The first point. */
+  public Point getPoint() {
+    return points[0];
+  }
+
+  public Point[] getPoints() {
+    return points.clone();
+  }
+
+  public SpatialContext getCtx() {
+    return ctx;
+  }
+
+  public boolean isApproximate() {
+    return approximate;
+  }
+
+  /** The field type, or null if not known. */
+  public MultiPointDocValuesField getType() {
+    return type;
+  }
+
+  /** The points of the field in a segment, or null if it has none. */
+  MultiPointDocs getDocs(LeafReader reader) throws IOException {
+    return MultiPointDocs.get(reader, fieldName, type, true);
+  }
+
+  /**
+   * Computes the distances of segments ahead of the one being scored on the
+   * executor, at most {@code maxConcurrency} at a time for a request; see
+   * {@link ParallelDistances}. That doesn't apply to sorting by the function,
+   * which abandons documents that aren't competitive instead.
+   */
+  public void setParallel(Executor executor, int maxConcurrency) {
+    this.executor = executor;
+    this.maxConcurrency = maxConcurrency;
+  }
+
+  /** A new finder for one segment's worth of documents. */
+  public NearestPointFinder newFinder() {
+    return new NearestPointFinder(points, ctx, approximate);
+  }
+
+  /**
+   * Starts recording the evaluation of a segment by the finder in the stats,
+   * or returns null if they aren't recorded. The caller closes it when done
+   * with the segment; failing that, it's closed when the request ends.
+   */
+  MultiPointDistanceStats.Segment recordSegment(NearestPointFinder finder) {
+    if (stats == null)
+      return null;
+    MultiPointDistanceStats.Segment segment = stats.newSegment(finder);
+    SolrRequestInfo requestInfo = SolrRequestInfo.getRequestInfo();
+    if (requestInfo != null)
+      requestInfo.addCloseHook(segment);
+    return segment;
+  }
+
+  /**
+   * The distance for a document, as {@link MultiPointDocs#minDistance},
+   * recording it in the segment if not null.
+   */
+  double minDistance(MultiPointDocs docs, NearestPointFinder finder, int doc, double maxDistance,
+                     MultiPointDistanceStats.Segment segment) {
+    double dist = docs.minDistance(finder, doc, maxDistance);
+    if (segment != null)
+      segment.recordDoc(finder.getPointCount(), dist > maxDistance);
+    return dist;
+  }
+
+  @Override
+  public void createWeight(Map context, IndexSearcher searcher) throws IOException {
+    if (executor != null) {
+      ParallelDistances parallel = new ParallelDistances(this, searcher.getIndexReader().leaves(), executor,
+          maxConcurrency);
+      SolrRequestInfo requestInfo = SolrRequestInfo.getRequestInfo();
+      if (requestInfo != null)//cancel what's left if the request ends early
+        requestInfo.addCloseHook(parallel);
+      context.put(this, parallel);
+    }
+  }
+
+  @Override
+  public FunctionValues getValues(Map context, LeafReaderContext readerContext) throws IOException {
+    ParallelDistances parallel = context != null ? (ParallelDistances) context.get(this) : null;
+    if (parallel != null) {
+      final double[] distances = parallel.get(readerContext);
+      if (distances == null)
+        return null;
+      return new DoubleDocValues(this) {
+        @Override
+        public double doubleVal(int doc) {
+          return distances[doc];
+        }
+      };
+    }
+
+    final LeafReader reader = readerContext.reader();
+    final MultiPointDocs docs = getDocs(reader);
+    if (docs == null)
+      return null;
+    final NearestPointFinder finder = newFinder();
+    final MultiPointDistanceStats.Segment segment = recordSegment(finder);
+    if (segment != null && context != null) {//done with the previous segment
+      MultiPointDistanceStats.Segment previous = (MultiPointDistanceStats.Segment) context.put(segmentKey, segment);
+      if (previous != null)
+        previous.close();
+    }
+
+    return new DoubleDocValues(this) {
+      //TODO why is the value being requested twice per doc?!
+      int lastDoc = -1;
+      double lastVal;
+
+      @Override
+      public double doubleVal(int doc) {
+        if (doc == lastDoc)
+          return lastVal;
+
+        //sanity check; shouldn't be necessary
+        if (doc < 0 || doc >= reader.maxDoc())
+          throw new IllegalStateException("Bad doc "+doc+" for reader "+reader);
+
+        lastVal = distance(docs, finder, reader, doc, segment);
+        lastDoc = doc;
+        return lastVal;
+      }
+    };
+  }
+
+  /** The distance of every document of the segment, or null if it has no points. */
+  double[] distances(LeafReaderContext readerContext) throws IOException {
+    final LeafReader reader = readerContext.reader();
+    final MultiPointDocs docs = getDocs(reader);
+    if (docs == null)
+      return null;
+    final NearestPointFinder finder = newFinder();
+    final MultiPointDistanceStats.Segment segment = recordSegment(finder);
+    double[] distances = new double[reader.maxDoc()];
+    for (int doc = 0; doc < distances.length; doc++) {
+      distances[doc] = distance(docs, finder, reader, doc, segment);
+    }
+    if (segment != null)
+      segment.close();
+    return distances;
+  }
+
+  private double distance(MultiPointDocs docs, NearestPointFinder finder, LeafReader reader, int doc,
+                          MultiPointDistanceStats.Segment segment) {
+    try {//shouldn't be necessary
+      return minDistance(docs, finder, doc, Double.MAX_VALUE, segment);
+    } catch (ArrayIndexOutOfBoundsException e) {
+      if (log.isErrorEnabled())
+        log.error("DocValues index corruption for docid "+doc+" reader "+reader);//don't log 'e'
+      return 1;//1 degree away, 111.2km
+    }
+  }
+
+  /**
+   * Sorts by distance, abandoning documents that can't be competitive with the
+   * bottom of the queue before calculating their distance precisely.
+   */
+  @Override
+  public SortField getSortField(boolean reverse) {
+    return new SortField(description(), new MultiPointDistanceComparatorSource(this), reverse);
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) return true;
+    if (o == null || getClass() != o.getClass()) return false;
+
+    MultiPointDistanceValueSource that = (MultiPointDistanceValueSource) o;
+
+    if (approximate != that.approximate) return false;
+    if (!fieldName.equals(that.fieldName)) return false;
+    if (!Arrays.equals(points, that.points)) return false;
+
+    return true;
+  }
+
+  @Override
+  public int hashCode() {
+    int result = fieldName.hashCode();
+    result = 31 * result + Arrays.hashCode(points);
+    result = 31 * result + (approximate ? 1 : 0);
+    return result;
+  }
+
+  @Override
+  public String description() {
+    StringBuilder sb = new StringBuilder("mpdv(").append(fieldName);
+    for (Point point : points) {
+      sb.append(',').append(point.getY()).append(' ').append(point.getX());
+    }
+    if (approximate)
+      sb.append(",fast");
+    return sb.append(')').toString();
+  }
+}
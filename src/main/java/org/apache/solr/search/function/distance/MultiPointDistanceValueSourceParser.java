@@ -18,70 +18,140 @@ package org.apache.solr.search.function.distance;
  */
 
 import com.spatial4j.core.context.SpatialContext;
-import com.spatial4j.core.exception.InvalidShapeException;
-import com.spatial4j.core.io.ParseUtils;
+import com.spatial4j.core.distance.DistanceUtils;
 import com.spatial4j.core.shape.Point;
-import org.apache.lucene.index.LeafReader;
-import org.apache.lucene.index.LeafReaderContext;
-import org.apache.lucene.index.BinaryDocValues;
-import org.apache.lucene.queries.function.FunctionValues;
 import org.apache.lucene.queries.function.ValueSource;
-import org.apache.lucene.queries.function.docvalues.DoubleDocValues;
 import org.apache.lucene.queries.function.valuesource.ReciprocalFloatFunction;
-import org.apache.lucene.spatial.MultiPointEncoding;
-import org.apache.lucene.util.BytesRef;
 import org.apache.solr.common.SolrException;
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.common.util.ExecutorUtil;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.common.util.SimpleOrderedMap;
+import org.apache.solr.core.CloseHook;
+import org.apache.solr.core.SolrCore;
+import org.apache.solr.core.SolrInfoMBean;
 import org.apache.solr.schema.FieldType;
+import org.apache.solr.schema.IndexSchema;
 import org.apache.solr.schema.MultiPointDocValuesField;
 import org.apache.solr.schema.SchemaField;
 import org.apache.solr.search.FunctionQParser;
 import org.apache.solr.search.SyntaxError;
 import org.apache.solr.search.ValueSourceParser;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
+import org.apache.solr.util.DefaultSolrThreadFactory;
 
-import java.io.IOException;
-import java.util.Map;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /** Yields a pseudo-distance substitute for sorting or relevancy boosting. Only
- * works with {@link MultiPointDocValuesField}.
+ * works with {@link MultiPointDocValuesField}. Any number of points may follow
+ * the field name: {@code distDV(field,"lat,lon","lat,lon",...)}; the result is
+ * the distance from the nearest of them.
+ * <p/>
+ * Local-params: "score" is "distance" (default) or "recipDistance"; "calc" is
+ * "exact" (default) or "fast", which picks each document's nearest point by an
+ * approximation and calculates the distance for that point alone; "snap"
+ * rounds the points to a grid of that spacing (kilometers for geospatial
+ * contexts), so that nearby points make equal queries which Solr's caches can
+ * share, at the expense of the distances being off by up to that much;
+ * "parallel" is "true" or the number of segments to compute ahead on a shared
+ * thread pool while the request thread scores, for function queries matching
+ * much of a many-segment index (see {@link ParallelDistances}); "stats" is
+ * "true" or "false" to record the request in the statistics below or not,
+ * overriding the init arg.
+ * <p/>
+ * Init args: "parallelThreads" is the size of the pool shared by the requests
+ * of the core (default: the number of processors), and "maxParallelPerRequest"
+ * caps the segments computed ahead for a request, so that a few heavy requests
+ * can't occupy the whole pool (default 4; also what "parallel=true" means).
+ * The pool queues up to parallelThreads segments; beyond that requests compute
+ * their segments themselves. A parallel request holds the distances of every
+ * document of up to maxParallelPerRequest + 1 segments, 8 bytes each.
+ * "stats" is whether to record statistics of the evaluation (default true).
+ * <p/>
+ * Statistics of the evaluation ({@link MultiPointDistanceStats}) are published
+ * on the admin stats page and through JMX. They're counted per segment and
+ * added to the shared counters once it's done, so recording them costs little
+ * even under full load. They include those of the field types'
+ * {@link MultiPointCache}s, under "caches", once the function has been used.
  */
-public class MultiPointDistanceValueSourceParser extends ValueSourceParser {
+public class MultiPointDistanceValueSourceParser extends ValueSourceParser implements SolrInfoMBean {
 
-  private final Logger log = LoggerFactory.getLogger(getClass());
+  private final MultiPointDistanceStats stats = new MultiPointDistanceStats();
+  private int parallelThreads = Runtime.getRuntime().availableProcessors();
+  private int maxParallelPerRequest = 4;
+  private boolean recordStats = true;
+  private ExecutorService executor;//created on first use
+  private volatile IndexSchema schema;//as of the last parse; for the caches' statistics
+
+  @Override
+  public void init(NamedList args) {
+    super.init(args);
+    Object parallelThreadsObj = args.get("parallelThreads");
+    if (parallelThreadsObj != null)
+      parallelThreads = Integer.parseInt(parallelThreadsObj.toString());
+    Object maxParallelObj = args.get("maxParallelPerRequest");
+    if (maxParallelObj != null)
+      maxParallelPerRequest = Integer.parseInt(maxParallelObj.toString());
+    Object statsObj = args.get("stats");
+    if (statsObj != null)
+      recordStats = Boolean.parseBoolean(statsObj.toString());
+    if (parallelThreads < 1 || maxParallelPerRequest < 1)
+      throw new SolrException(SolrException.ErrorCode.SERVER_ERROR,
+          "parallelThreads and maxParallelPerRequest must be positive");
+  }
 
   @Override
   public ValueSource parse(FunctionQParser fp) throws SyntaxError {
     String fieldName = fp.parseId();
-    SchemaField field = fp.getReq().getSchema().getField(fieldName);
+    schema = fp.getReq().getSchema();
+    SchemaField field = schema.getField(fieldName);
     FieldType type = field.getType();
     if (!(type instanceof MultiPointDocValuesField))
       throw new SyntaxError("This function only supports fields of type "+
           MultiPointDocValuesField.class.getName()+", not "+type.getClass().getName());
     MultiPointDocValuesField mpdvFieldType = (MultiPointDocValuesField) type;
 
-    double[] parsedLatLong = null;
-    try {
-      parsedLatLong = ParseUtils.parseLatitudeLongitude(fp.parseArg());
-    } catch (InvalidShapeException e) {
-      throw new SolrException(SolrException.ErrorCode.BAD_REQUEST, e);
-    }
-
-    double y = parsedLatLong[0];
-    double x = parsedLatLong[1];
-
     SpatialContext ctx = mpdvFieldType.getCtx();
-    Point point = ctx.makePoint(x, y);
+    List<Point> points = new ArrayList<Point>();
+    points.add(mpdvFieldType.parseLatLon(fp.parseArg()));
+    while (fp.hasMoreArguments()) {
+      points.add(mpdvFieldType.parseLatLon(fp.parseArg()));
+    }
 
-    String score = fp.getLocalParams().get("score", "distance");
-    ValueSource valueSource = new MultiPointDistanceValueSource(fieldName, point, ctx);
+    //no local-params when parsed from the sort param
+    SolrParams localParams = fp.getLocalParams() != null ? fp.getLocalParams() : new ModifiableSolrParams();
+    String score = localParams.get("score", "distance");
+    double snap = localParams.getDouble("snap", 0);
+    if (snap < 0)
+      throw new SolrException(SolrException.ErrorCode.BAD_REQUEST, "'snap' local-param must not be negative");
+    if (snap > 0) {
+      double step = ctx.isGeo() ? DistanceUtils.dist2Degrees(snap, DistanceUtils.EARTH_MEAN_RADIUS_KM) : snap;
+      for (int i = 0; i < points.size(); i++) {
+        points.set(i, snapPoint(points.get(i), step, ctx));
+      }
+    }
+    String calc = localParams.get("calc", "exact");
+    if (!"exact".equals(calc) && !"fast".equals(calc))
+      throw new SolrException(SolrException.ErrorCode.BAD_REQUEST, "'calc' local-param must be one of 'exact', or 'fast'");
+    MultiPointDistanceValueSource valueSource = new MultiPointDistanceValueSource(fieldName,
+        points.toArray(new Point[points.size()]), mpdvFieldType, "fast".equals(calc),
+        localParams.getBool("stats", recordStats) ? stats : null);
+    int concurrency = parseParallel(localParams.get("parallel", "false"));
+    if (concurrency > 0)
+      valueSource.setParallel(getExecutor(fp.getReq().getCore()), concurrency);
 
     if ("distance".equals(score)) {
       return valueSource;
     }
     else if ("recipDistance".equals(score)) {
-      int shift = fp.getLocalParams().getInt("shift", 100);
-      int maxScore = fp.getLocalParams().getInt("maxScore", 10);
+      int shift = localParams.getInt("shift", 100);
+      int maxScore = localParams.getInt("maxScore", 10);
       return new ReciprocalFloatFunction(valueSource, maxScore, shift, shift);
     }
     else {
@@ -89,79 +159,96 @@ public class MultiPointDistanceValueSourceParser extends ValueSourceParser {
     }
   }
 
-  private class MultiPointDistanceValueSource extends ValueSource {
-    private final String fieldName;
-    private final Point point;
-    private final SpatialContext ctx;
-
-    public MultiPointDistanceValueSource(String fieldName, Point point, SpatialContext ctx) {
-      this.fieldName = fieldName;
-      this.point = point;
-      this.ctx = ctx;
+  /** The segments to compute ahead, or 0 for none. */
+  private int parseParallel(String parallel) {
+    if ("false".equals(parallel))
+      return 0;
+    if ("true".equals(parallel))
+      return maxParallelPerRequest;
+    try {
+      return Math.max(0, Math.min(Integer.parseInt(parallel), maxParallelPerRequest));
+    } catch (NumberFormatException e) {
+      throw new SolrException(SolrException.ErrorCode.BAD_REQUEST,
+          "'parallel' local-param must be 'true', 'false' or a number: " + parallel);
     }
+  }
 
-    @Override
-    public FunctionValues getValues(Map context, LeafReaderContext readerContext) throws IOException {
-      final LeafReader reader = readerContext.reader();
-      final BinaryDocValues docValues = reader.getBinaryDocValues(fieldName);
-      if (docValues == null)
-        return null;
-
-      return new DoubleDocValues(this) {
-        public BytesRef scratch = null;
-
-        //TODO why is the value being requested twice per doc?!
-        int lastDoc = -1;
-        double lastVal;
+  /** The pool shared by the core's requests, shut down with the core. Rejects when its queue is full. */
+  private synchronized ExecutorService getExecutor(SolrCore core) {
+    if (executor == null) {
+      final ThreadPoolExecutor pool = new ThreadPoolExecutor(parallelThreads, parallelThreads,
+          60, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(parallelThreads), new DefaultSolrThreadFactory("distDV"));
+      pool.allowCoreThreadTimeOut(true);
+      core.addCloseHook(new CloseHook() {
+        @Override
+        public void preClose(SolrCore core) {
+        }
 
         @Override
-        public double doubleVal(int doc) {
-          if (doc == lastDoc)
-            return lastVal;
-
-          //sanity check; shouldn't be necessary
-          if (doc < 0 || doc >= reader.maxDoc())
-            throw new IllegalStateException("Bad doc "+doc+" for reader "+reader);
-
-          BytesRef bytes = null;
-          try {//shouldn't be necessary
-            scratch = docValues.get(doc);
-            bytes = scratch;
-          } catch (ArrayIndexOutOfBoundsException e) {
-            if (log.isErrorEnabled())
-              log.error("DocValues index corruption for docid "+doc+" reader "+reader);//don't log 'e'
-          }
-          if (bytes != null)
-            lastVal = MultiPointEncoding.calcDistance(point, bytes, ctx);
-          else
-            lastVal = 1;//1 degree away, 111.2km
-
-          lastDoc = doc;
-          return lastVal;
+        public void postClose(SolrCore core) {
+          ExecutorUtil.shutdownAndAwaitTermination(pool);
         }
-      };
+      });
+      executor = pool;
     }
+    return executor;
+  }
 
-    @Override
-    public boolean equals(Object o) {
-      if (this == o) return true;
-      if (o == null || getClass() != o.getClass()) return false;
+  @Override
+  public String getName() {
+    return getClass().getName();
+  }
 
-      MultiPointDistanceValueSource that = (MultiPointDistanceValueSource) o;
+  @Override
+  public String getVersion() {
+    return getClass().getPackage().getSpecificationVersion();
+  }
 
-      if (!fieldName.equals(that.fieldName)) return false;
+  @Override
+  public String getDescription() {
+    return "Distance to the nearest of multiple points (distDV)";
+  }
 
-      return true;
-    }
+  @Override
+  public Category getCategory() {
+    return Category.QUERYPARSER;
+  }
 
-    @Override
-    public int hashCode() {
-      return fieldName.hashCode();
+  @Override
+  public String getSource() {
+    return null;
+  }
+
+  @Override
+  public URL[] getDocs() {
+    return null;
+  }
+
+  @Override
+  public NamedList getStatistics() {
+    NamedList<Object> statistics = stats.getStatistics();
+    IndexSchema schema = this.schema;
+    if (schema != null) {
+      NamedList<Object> caches = new SimpleOrderedMap<Object>();
+      for (FieldType type : schema.getFieldTypes().values()) {
+        MultiPointCache cache = type instanceof MultiPointDocValuesField
+            ? ((MultiPointDocValuesField) type).getCache() : null;
+        if (cache != null)
+          caches.add(type.getTypeName(), cache.getStatistics());
+      }
+      statistics.add("caches", caches);
     }
+    return statistics;
+  }
 
-    @Override
-    public String description() {
-      return "mpdv("+fieldName+")";
+  /** Rounds the point to the nearest multiple of {@code step} in each dimension. */
+  static Point snapPoint(Point point, double step, SpatialContext ctx) {
+    double x = Math.round(point.getX() / step) * step;
+    double y = Math.round(point.getY() / step) * step;
+    if (ctx.isGeo()) {
+      x = DistanceUtils.normLonDEG(x);
+      y = Math.max(-90, Math.min(90, y));
     }
+    return ctx.makePoint(x, y);
   }
 }
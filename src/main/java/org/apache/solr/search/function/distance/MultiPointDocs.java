@@ -0,0 +1,153 @@
+package org.apache.solr.search.function.distance;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import com.spatial4j.core.shape.Rectangle;
+import org.apache.lucene.index.BinaryDocValues;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.SortedNumericDocValues;
+import org.apache.lucene.spatial.MultiPointCursor;
+import org.apache.lucene.spatial.NearestPointFinder;
+import org.apache.solr.schema.MultiPointDocValuesField;
+
+import java.io.IOException;
+
+/**
+ * The points of one segment's documents for a {@link MultiPointDocValuesField},
+ * wherever they come from: BinaryDocValues, SortedNumericDocValues of Morton
+ * codes, or a {@link MultiPointCache}. Not thread-safe; get one per segment per
+ * thread.
+ */
+public abstract class MultiPointDocs {
+
+  /** See {@link NearestPointFinder#minDistance(org.apache.lucene.util.BytesRef, double)}. */
+  public abstract double minDistance(NearestPointFinder finder, int doc, double maxDistance);
+
+  /** See {@link NearestPointFinder#anyWithin(org.apache.lucene.util.BytesRef, double)}. */
+  public abstract boolean anyWithin(NearestPointFinder finder, int doc, double distance);
+
+  /** A cursor positioned before the document's first point. */
+  public abstract MultiPointCursor cursor(int doc);
+
+  /**
+   * The points of the field in the segment, from the field type's cache if it
+   * has one, or null if the segment has none.
+   *
+   * @param type       may be null for a plain, uncached, binary field
+   * @param fillCache  whether to decode the segment into the cache if it isn't
+   *                   already there; else it's read directly
+   */
+  public static MultiPointDocs get(LeafReader reader, String field, MultiPointDocValuesField type,
+                                   boolean fillCache) throws IOException {
+    MultiPointCache cache = type != null ? type.getCache() : null;
+    if (cache != null) {
+      MultiPointCache.Points points = fillCache ? cache.get(reader, field, type) : cache.getIfPresent(reader, field);
+      if (points != null)
+        return new Cached(points);
+    }
+    return getUncached(reader, field, type);
+  }
+
+  /** The points as stored in the index, or null if the segment has none. */
+  public static MultiPointDocs getUncached(LeafReader reader, String field, MultiPointDocValuesField type)
+      throws IOException {
+    if (type != null && type.isMorton()) {
+      SortedNumericDocValues values = reader.getSortedNumericDocValues(field);
+      return values != null ? new Morton(values, type.getCtx().getWorldBounds()) : null;
+    }
+    BinaryDocValues values = reader.getBinaryDocValues(field);
+    return values != null ? new Binary(values) : null;
+  }
+
+  static class Binary extends MultiPointDocs {
+    private final BinaryDocValues values;
+    private final MultiPointCursor cursor = new MultiPointCursor();
+
+    Binary(BinaryDocValues values) {
+      this.values = values;
+    }
+
+    @Override
+    public double minDistance(NearestPointFinder finder, int doc, double maxDistance) {
+      return finder.minDistance(values.get(doc), maxDistance);
+    }
+
+    @Override
+    public boolean anyWithin(NearestPointFinder finder, int doc, double distance) {
+      return finder.anyWithin(values.get(doc), distance);
+    }
+
+    @Override
+    public MultiPointCursor cursor(int doc) {
+      return cursor.reset(values.get(doc));
+    }
+  }
+
+  static class Morton extends MultiPointDocs {
+    private final SortedNumericDocValues values;
+    private final Rectangle worldBounds;
+    private final MultiPointCursor cursor = new MultiPointCursor();
+
+    Morton(SortedNumericDocValues values, Rectangle worldBounds) {
+      this.values = values;
+      this.worldBounds = worldBounds;
+    }
+
+    @Override
+    public double minDistance(NearestPointFinder finder, int doc, double maxDistance) {
+      values.setDocument(doc);
+      return finder.minDistance(values, maxDistance);
+    }
+
+    @Override
+    public boolean anyWithin(NearestPointFinder finder, int doc, double distance) {
+      values.setDocument(doc);
+      return finder.anyWithin(values, distance);
+    }
+
+    @Override
+    public MultiPointCursor cursor(int doc) {
+      values.setDocument(doc);
+      return cursor.reset(values, 0, values.count(), worldBounds);
+    }
+  }
+
+  static class Cached extends MultiPointDocs {
+    private final MultiPointCache.Points points;
+    private final MultiPointCursor cursor = new MultiPointCursor();
+
+    Cached(MultiPointCache.Points points) {
+      this.points = points;
+    }
+
+    @Override
+    public double minDistance(NearestPointFinder finder, int doc, double maxDistance) {
+      return finder.minDistance(points.xs, points.ys, points.offsets[doc], points.offsets[doc + 1], maxDistance);
+    }
+
+    @Override
+    public boolean anyWithin(NearestPointFinder finder, int doc, double distance) {
+      return finder.anyWithin(points.xs, points.ys, points.offsets[doc], points.offsets[doc + 1], distance);
+    }
+
+    @Override
+    public MultiPointCursor cursor(int doc) {
+      return cursor.reset(points.xs, points.ys, points.offsets[doc], points.offsets[doc + 1]);
+    }
+  }
+}
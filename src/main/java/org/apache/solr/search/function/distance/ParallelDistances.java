@@ -0,0 +1,134 @@
+package org.apache.solr.search.function.distance;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.solr.common.SolrException;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Computes the distances of the documents of the segments after the one being
+ * collected on a shared executor, for one request of a
+ * {@link MultiPointDistanceValueSource} in parallel mode. Segments are
+ * collected in order, so while the request thread collects one, the next
+ * {@code maxConcurrency} are computed. That bounds the request's share of the
+ * executor, and the memory held in distances. A segment the executor hasn't
+ * started on by the time it's needed is computed by the request thread, so a
+ * busy executor degrades to sequential evaluation rather than waiting, as
+ * does one whose queue is full.
+ * <p/>
+ * Every document of a segment is computed, matching the query or not, into a
+ * {@code double[maxDoc]}; with the segment being collected, a request holds up
+ * to {@code (maxConcurrency + 1) * 8 * maxDoc} bytes of them, maxDoc being that
+ * of the largest segments. Closing it, which the request does when it ends,
+ * cancels the segments not started yet, so an aborted request doesn't leave
+ * its work queued.
+ * Not thread-safe; it's used by the request thread.
+ */
+class ParallelDistances implements Closeable {
+
+  private final MultiPointDistanceValueSource valueSource;
+  private final List<LeafReaderContext> leaves;
+  private final Executor executor;
+  private final int maxConcurrency;
+  private final List<FutureTask<double[]>> tasks;//by leaf ord, for the leaves submitted; null once taken
+  private int passed = 0;//leaves before this were taken or skipped
+
+  ParallelDistances(MultiPointDistanceValueSource valueSource, List<LeafReaderContext> leaves, Executor executor,
+                    int maxConcurrency) {
+    this.valueSource = valueSource;
+    this.leaves = leaves;
+    this.executor = executor;
+    this.maxConcurrency = maxConcurrency;
+    this.tasks = new ArrayList<FutureTask<double[]>>(leaves.size());
+  }
+
+  /**
+   * The distance of each document of the segment, or null if it has no
+   * points; computed by the executor if it got to it.
+   */
+  double[] get(LeafReaderContext leaf) throws IOException {
+    final int ord = leaf.ord;
+    if (ord >= leaves.size() || leaves.get(ord) != leaf)//not ours; shouldn't happen
+      return valueSource.distances(leaf);
+    //leaves before this one the query skipped won't be asked for
+    for (; passed < ord && passed < tasks.size(); passed++) {
+      FutureTask<double[]> skipped = tasks.set(passed, null);
+      if (skipped != null)
+        skipped.cancel(false);
+    }
+    while (tasks.size() < ord)//skipped before they were submitted
+      tasks.add(null);
+    while (tasks.size() < leaves.size() && tasks.size() <= ord + maxConcurrency) {
+      FutureTask<double[]> task = newTask(leaves.get(tasks.size()));
+      tasks.add(task);
+      try {
+        executor.execute(task);
+      } catch (RejectedExecutionException e) {
+        break;//saturated or shutting down; it'll be run by get
+      }
+    }
+    FutureTask<double[]> task = tasks.set(ord, null);//there's one by now
+    if (task == null)//asked for again
+      return valueSource.distances(leaf);
+    task.run();//unless already started
+    try {
+      return task.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new SolrException(SolrException.ErrorCode.SERVER_ERROR, e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException)
+        throw (IOException) cause;
+      if (cause instanceof RuntimeException)
+        throw (RuntimeException) cause;
+      if (cause instanceof Error)
+        throw (Error) cause;
+      throw new SolrException(SolrException.ErrorCode.SERVER_ERROR, cause);
+    }
+  }
+
+  /** Cancels the segments the executor hasn't started on; those running finish. */
+  @Override
+  public void close() {
+    for (int i = 0; i < tasks.size(); i++) {
+      FutureTask<double[]> task = tasks.set(i, null);
+      if (task != null)
+        task.cancel(false);//interrupting would close the index's file channels
+    }
+  }
+
+  private FutureTask<double[]> newTask(final LeafReaderContext leaf) {
+    return new FutureTask<double[]>(new Callable<double[]>() {
+      @Override
+      public double[] call() throws Exception {
+        return valueSource.distances(leaf);
+      }
+    });
+  }
+}
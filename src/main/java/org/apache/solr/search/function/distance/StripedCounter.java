@@ -0,0 +1,56 @@
+package org.apache.solr.search.function.distance;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter for statistics that many threads add to at once, like Java 8's
+ * LongAdder. Each thread adds to one of several cells, picked by its id and
+ * padded to a cache line of its own, so that threads rarely contend for a
+ * cell; reading the counter sums them.
+ */
+public final class StripedCounter {
+
+  private static final int STRIPES = stripes();
+  private static final int PAD = 8;//longs per 64 byte cache line
+
+  private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PAD);
+
+  private static int stripes() {
+    int n = Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 2 - 1) * 2;
+    return Math.min(n, 64);
+  }
+
+  public void add(long x) {
+    cells.getAndAdd(((int) Thread.currentThread().getId() & (STRIPES - 1)) * PAD, x);
+  }
+
+  public void increment() {
+    add(1);
+  }
+
+  /** The total; not a snapshot if there are concurrent additions. */
+  public long sum() {
+    long sum = 0;
+    for (int i = 0; i < STRIPES; i++) {
+      sum += cells.get(i * PAD);
+    }
+    return sum;
+  }
+}
@@ -17,17 +17,42 @@ package org.apache.solr.update.processor;
  * limitations under the License.
  */
 
+import org.apache.lucene.document.SortedNumericDocValuesField;
 import org.apache.lucene.index.IndexableField;
+import org.apache.lucene.spatial.MultiPointCursor;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.RamUsageEstimator;
 import org.apache.solr.common.SolrInputField;
 import org.apache.solr.common.util.NamedList;
+import org.apache.solr.common.util.SimpleOrderedMap;
+import org.apache.solr.core.SolrInfoMBean;
 import org.apache.solr.request.SolrQueryRequest;
 import org.apache.solr.response.SolrQueryResponse;
-import org.apache.solr.schema.FieldType;
 import org.apache.solr.schema.IndexSchema;
 import org.apache.solr.schema.MultiPointDocValuesField;
 import org.apache.solr.schema.SchemaField;
+import org.apache.solr.search.function.distance.StripedCounter;
 
-public class MultiValUpdateRequestProcessorFactory extends FieldMutatingUpdateProcessorFactory {
+import java.net.URL;
+import java.util.List;
+
+/**
+ * Hands all the values of a {@link MultiPointDocValuesField} to the field type
+ * at once, which Solr's DocumentBuilder can't do; see
+ * {@link MultiPointDocValuesField#createFields(SchemaField, Object, float)}.
+ * Statistics of the documents with multiple points it encodes are published on
+ * the admin stats page and through JMX, including the points removed by the
+ * field types' "snap", "dedup" and "maxPoints".
+ */
+public class MultiValUpdateRequestProcessorFactory extends FieldMutatingUpdateProcessorFactory
+    implements SolrInfoMBean {
+
+  private final StripedCounter docs = new StripedCounter();
+  private final StripedCounter pointsParsed = new StripedCounter();
+  private final StripedCounter pointsEncoded = new StripedCounter();
+  private final StripedCounter pointsRemoved = new StripedCounter();
+  private final StripedCounter bytesWritten = new StripedCounter();
 
   @Override
   public void init(NamedList args) {
@@ -41,18 +66,88 @@ public class MultiValUpdateRequestProcessorFactory extends FieldMutatingUpdatePr
                                             UpdateRequestProcessor next) {
     final IndexSchema schema = req.getSchema();
     return new FieldMutatingUpdateProcessor(getSelector(), next) {
+      //reused from document to document; points are parsed straight into it
+      private double[] xy = new double[64];
+      private final MultiPointCursor cursor = new MultiPointCursor();
+
       @Override
       protected SolrInputField mutate(SolrInputField src) {
         if (src.getValueCount() <= 1)
           return src;//short circuit single value
         SchemaField field = schema.getField(src.getName());
-        FieldType ft = field.getType();
-        IndexableField result = ft.createField(field, src, src.getBoost());
-        if (result == null)
+        MultiPointDocValuesField ft = (MultiPointDocValuesField) field.getType();
+        if (xy.length < src.getValueCount() * 2)
+          xy = new double[ArrayUtil.oversize(src.getValueCount() * 2, RamUsageEstimator.NUM_BYTES_DOUBLE)];
+        int count = ft.parsePoints(src.getValues(), xy);
+        List<IndexableField> result = ft.createFields(field, xy, count);
+        if (result.isEmpty())
           return null;//remove
-        src.setValue(result, src.getBoost());
+        record(count, result);
+        src.setValue(result.size() == 1 ? result.get(0) : new MultiPointDocValuesField.EncodedPoints(result),
+            src.getBoost());
         return src;
       }
+
+      private void record(int parsed, List<IndexableField> fields) {
+        long encoded = 0;
+        long bytes = 0;
+        for (IndexableField f : fields) {//DocValues; not prefix tree terms
+          if (f.binaryValue() != null) {
+            BytesRef value = f.binaryValue();
+            encoded += cursor.reset(value).size();
+            bytes += value.length;
+          } else if (f instanceof SortedNumericDocValuesField) {//a Morton code per point
+            encoded++;
+            bytes += RamUsageEstimator.NUM_BYTES_LONG;
+          }
+        }
+        docs.increment();
+        pointsParsed.add(parsed);
+        pointsEncoded.add(encoded);
+        pointsRemoved.add(parsed - encoded);//each point is encoded once, unless reduced away
+        bytesWritten.add(bytes);
+      }
     };
   }
+
+  @Override
+  public String getName() {
+    return getClass().getName();
+  }
+
+  @Override
+  public String getVersion() {
+    return getClass().getPackage().getSpecificationVersion();
+  }
+
+  @Override
+  public String getDescription() {
+    return "Encodes the points of multi-point documents";
+  }
+
+  @Override
+  public Category getCategory() {
+    return Category.UPDATEHANDLER;
+  }
+
+  @Override
+  public String getSource() {
+    return null;
+  }
+
+  @Override
+  public URL[] getDocs() {
+    return null;
+  }
+
+  @Override
+  public NamedList getStatistics() {
+    NamedList<Object> stats = new SimpleOrderedMap<Object>();
+    stats.add("docs", docs.sum());
+    stats.add("pointsParsed", pointsParsed.sum());
+    stats.add("pointsEncoded", pointsEncoded.sum());
+    stats.add("pointsRemoved", pointsRemoved.sum());
+    stats.add("bytesWritten", bytesWritten.sum());
+    return stats;
+  }
 }
@@ -18,7 +18,10 @@ package org.apache.lucene.spatial;
  */
 
 import com.spatial4j.core.context.SpatialContext;
+import com.spatial4j.core.distance.DistanceUtils;
 import com.spatial4j.core.shape.Point;
+import com.spatial4j.core.shape.Rectangle;
+import org.apache.lucene.index.SortedNumericDocValues;
 import org.apache.lucene.util.BytesRef;
 import org.apache.lucene.util.LuceneTestCase;
 import org.junit.Test;
@@ -46,6 +49,429 @@ public class MultiPointEncodingTest extends LuceneTestCase {
     assertArrayEquals(inputs, output, 0.0f);
   }
 
+  @Test
+  public void testNearestPointFinder() {
+    Point[] points = new Point[random().nextInt(10)];
+    for (int i = 0; i < points.length; i++) {
+      points[i] = ctx.makePoint(randomFloatIn(-180, 180), randomFloatIn(-90, 90));
+    }
+    BytesRef bytes = MultiPointEncoding.pointsToBytes(Arrays.asList(points));
+    Point origin = ctx.makePoint(randomFloatIn(-180, 180), randomFloatIn(-90, 90));
+    float[] floats = MultiPointEncoding.bytesToFloats(bytes);
+    double expected = Double.MAX_VALUE;
+    int expectedIdx = -1;
+    for (int i = 0; i < floats.length; i += 2) {
+      double dist = ctx.getDistCalc().distance(origin, floats[i], floats[i + 1]);
+      if (dist < expected) {
+        expected = dist;
+        expectedIdx = i / 2;
+      }
+    }
+    NearestPointFinder finder = new NearestPointFinder(origin, ctx);
+    for (int iter = 0; iter < 2; iter++) {//reuse
+      assertEquals(expected, finder.minDistance(bytes), 0.0);
+      assertEquals(expectedIdx, finder.getNearestIndex());
+    }
+
+    MultiPointCursor cursor = new MultiPointCursor().reset(bytes);
+    assertEquals(points.length, cursor.size());
+    for (int i = 0; i < points.length; i++) {
+      assertTrue(cursor.next());
+      assertEquals(floats[i * 2], cursor.getX(), 0.0f);
+      assertEquals(floats[i * 2 + 1], cursor.getY(), 0.0f);
+    }
+    assertFalse(cursor.next());
+  }
+
+  @Test
+  public void testBoundingBoxFormat() {
+    Point[] points = randomPoints(1 + random().nextInt(10));
+    BytesRef bytes = MultiPointEncoding.pointsToBytes(Arrays.asList(points), MultiPointEncoding.FORMAT_BBOX);
+    assertEquals(MultiPointEncoding.FORMAT_BBOX, MultiPointEncoding.readFormat(bytes));
+    float[] floats = MultiPointEncoding.bytesToFloats(bytes);
+    assertEquals(points.length * 2, floats.length);
+
+    MultiPointCursor cursor = new MultiPointCursor().reset(bytes);
+    assertTrue(cursor.hasBoundingBox());
+    assertEquals(points.length, cursor.size());
+    for (int i = 0; i < floats.length; i += 2) {
+      assertTrue(cursor.next());
+      assertTrue(floats[i] >= cursor.getMinX() && floats[i] <= cursor.getMaxX());
+      assertTrue(floats[i + 1] >= cursor.getMinY() && floats[i + 1] <= cursor.getMaxY());
+    }
+    assertFalse(cursor.next());
+
+    //a flat encoding of the same points has no header
+    BytesRef flat = MultiPointEncoding.pointsToBytes(Arrays.asList(points));
+    assertEquals(MultiPointEncoding.FORMAT_FLAT, MultiPointEncoding.readFormat(flat));
+    assertArrayEquals(floats, MultiPointEncoding.bytesToFloats(flat), 0.0f);
+  }
+
+  @Test
+  public void testPruning() {
+    for (int iter = 0; iter < 100; iter++) {
+      Point[] points = randomPoints(random().nextInt(10));
+      int format = random().nextBoolean() ? MultiPointEncoding.FORMAT_FLAT : MultiPointEncoding.FORMAT_BBOX;
+      BytesRef bytes = MultiPointEncoding.pointsToBytes(Arrays.asList(points), format);
+      Point origin = ctx.makePoint(randomFloatIn(-180, 180), randomFloatIn(-90, 90));
+      NearestPointFinder finder = new NearestPointFinder(origin, ctx);
+      double expected = finder.minDistance(bytes);
+      double maxDistance = randomFloatIn(0, 180);
+      double pruned = finder.minDistance(bytes, maxDistance);
+      if (expected <= maxDistance)
+        assertEquals(expected, pruned, 0.0);
+      else
+        assertTrue(pruned > maxDistance);
+    }
+  }
+
+  @Test
+  public void testMultipleOrigins() {
+    Point[] points = randomPoints(random().nextInt(100));
+    int format = random().nextInt(MultiPointEncoding.FORMAT_VECTOR + 1);
+    BytesRef bytes = MultiPointEncoding.pointsToBytes(Arrays.asList(points), format);
+    Point[] origins = randomPoints(1 + random().nextInt(5));
+    double expected = Double.MAX_VALUE;
+    int expectedOrigin = -1;
+    for (int o = 0; o < origins.length; o++) {
+      double dist = new NearestPointFinder(origins[o], ctx).minDistance(bytes);
+      if (dist < expected) {
+        expected = dist;
+        expectedOrigin = o;
+      }
+    }
+    NearestPointFinder finder = new NearestPointFinder(origins, ctx);
+    assertEquals(expected, finder.minDistance(bytes), 0.0);
+    assertEquals(expectedOrigin, finder.getNearestOrigin());
+    double maxDistance = randomFloatIn(0, 180);
+    double pruned = finder.minDistance(bytes, maxDistance);
+    if (expected <= maxDistance)
+      assertEquals(expected, pruned, 0.0);
+    else
+      assertTrue(pruned > maxDistance);
+    assertEquals(expected <= maxDistance, finder.anyWithin(bytes, maxDistance));
+  }
+
+  @Test
+  public void testApproximate() {
+    Point origin = ctx.makePoint(randomFloatIn(-170, 170), randomFloatIn(-45, 45));
+    Point[] points = new Point[1 + random().nextInt(100)];
+    for (int i = 0; i < points.length; i++) {//nearby, where the approximation is good
+      points[i] = ctx.makePoint(origin.getX() + randomFloatIn(-1, 1), origin.getY() + randomFloatIn(-1, 1));
+    }
+    int format = random().nextBoolean() ? MultiPointEncoding.FORMAT_FLAT : MultiPointEncoding.FORMAT_BLOCKED;
+    BytesRef bytes = MultiPointEncoding.pointsToBytes(Arrays.asList(points), format);
+    double expected = new NearestPointFinder(origin, ctx).minDistance(bytes);
+    NearestPointFinder finder = new NearestPointFinder(new Point[]{origin}, ctx, true);
+    double approx = finder.minDistance(bytes);
+    //exact for the point it chose...
+    assertEquals(ctx.getDistCalc().distance(origin, finder.getNearestX(), finder.getNearestY()), approx, 0.0);
+    //...which is at least nearly the nearest
+    assertEquals(expected, approx, expected * 0.05 + 1e-9);
+  }
+
+  @Test
+  public void testDecodedCoordinates() {
+    Point[] points = randomPoints(random().nextInt(20));
+    BytesRef bytes = MultiPointEncoding.pointsToBytes(Arrays.asList(points));
+    float[] floats = MultiPointEncoding.bytesToFloats(bytes);
+    //somewhere in the middle of bigger arrays, as a cache holds them
+    float[] xs = new float[points.length + 2];
+    float[] ys = new float[points.length + 2];
+    for (int i = 0; i < points.length; i++) {
+      xs[1 + i] = floats[i * 2];
+      ys[1 + i] = floats[i * 2 + 1];
+    }
+    Point origin = ctx.makePoint(randomFloatIn(-180, 180), randomFloatIn(-90, 90));
+    NearestPointFinder finder = new NearestPointFinder(origin, ctx);
+    double maxDistance = random().nextBoolean() ? Double.MAX_VALUE : randomFloatIn(0, 180);
+    double expected = finder.minDistance(bytes, maxDistance);
+    int expectedIdx = finder.getNearestIndex();
+    assertEquals(expected, finder.minDistance(xs, ys, 1, 1 + points.length, maxDistance), 0.0);
+    assertEquals(expectedIdx, finder.getNearestIndex());
+    assertEquals(expected <= maxDistance, finder.anyWithin(xs, ys, 1, 1 + points.length, maxDistance));
+  }
+
+  @Test
+  public void testApproximateDecodedCoordinates() {
+    //nearby, where the approximation is good; maybe across the date line
+    Point origin = ctx.makePoint(random().nextBoolean() ? 179.5 : randomFloatIn(-170, 170), randomFloatIn(-45, 45));
+    int n = 1 + random().nextInt(100);
+    float[] xs = new float[n];
+    float[] ys = new float[n];
+    for (int i = 0; i < n; i++) {
+      xs[i] = (float) DistanceUtils.normLonDEG(origin.getX() + randomFloatIn(-1, 1));
+      ys[i] = (float) (origin.getY() + randomFloatIn(-1, 1));
+    }
+    NearestPointFinder exact = new NearestPointFinder(origin, ctx);
+    double expected = exact.minDistance(xs, ys, 0, n, Double.MAX_VALUE);
+    NearestPointFinder finder = new NearestPointFinder(new Point[]{origin}, ctx, true);
+    double approx = finder.minDistance(xs, ys, 0, n, Double.MAX_VALUE);
+    //exact for the point it chose...
+    assertEquals(ctx.getDistCalc().distance(origin, finder.getNearestX(), finder.getNearestY()), approx, 0.0);
+    assertEquals(xs[finder.getNearestIndex()], finder.getNearestX(), 0f);
+    //...which is at least nearly the nearest
+    assertEquals(expected, approx, expected * 0.05 + 1e-9);
+  }
+
+  @Test
+  public void testPrimitiveEncoding() {
+    Point[] points = randomPoints(random().nextInt(100));
+    int format = random().nextInt(MultiPointEncoding.FORMAT_VECTOR + 1);
+    double[] xy = new double[points.length * 2 + random().nextInt(4) * 2];//maybe with spare room
+    for (int i = 0; i < points.length; i++) {
+      xy[i * 2] = points[i].getX();
+      xy[i * 2 + 1] = points[i].getY();
+    }
+    BytesRef expected = MultiPointEncoding.pointsToBytes(Arrays.asList(points), format);
+    assertEquals(expected, MultiPointEncoding.pointsToBytes(xy, points.length, format,
+        MultiPointEncoding.DEFAULT_PRECISION));
+  }
+
+  @Test
+  public void testReducePairs() {
+    double[] xy = {3, 4, 1, 2, 3, 4, 1, 2, 1, 2.5};
+    assertEquals(3, MultiPointEncoding.dedupPairs(xy, 5));
+    assertArrayEquals(new double[]{1, 2, 1, 2.5, 3, 4}, Arrays.copyOf(xy, 6), 0.0);
+
+    MultiPointEncoding.snapPairs(xy, 3, 2, true);
+    assertArrayEquals(new double[]{2, 2, 2, 2, 4, 4}, Arrays.copyOf(xy, 6), 0.0);
+
+    Point[] points = randomPoints(100 + random().nextInt(100));
+    xy = new double[points.length * 2];
+    for (int i = 0; i < points.length; i++) {
+      xy[i * 2] = points[i].getX();
+      xy[i * 2 + 1] = points[i].getY();
+    }
+    double[] original = xy.clone();
+    int max = 1 + random().nextInt(50);
+    assertEquals(max, MultiPointEncoding.thinPairs(xy, points.length, max));
+    //each kept point is one of the originals
+    outer:
+    for (int i = 0; i < max; i++) {
+      for (int j = 0; j < points.length; j++) {
+        if (xy[i * 2] == original[j * 2] && xy[i * 2 + 1] == original[j * 2 + 1])
+          continue outer;
+      }
+      fail("point " + i + " wasn't in the original");
+    }
+  }
+
+  @Test
+  public void testMorton() {
+    Rectangle world = ctx.getWorldBounds();
+    Point[] points = randomPoints(random().nextInt(200));
+    long[] values = new long[points.length];
+    double cellWidth = world.getWidth() / 0xFFFFFFFFL;
+    double cellHeight = world.getHeight() / 0xFFFFFFFFL;
+    for (int i = 0; i < points.length; i++) {
+      values[i] = MultiPointEncoding.toMorton(points[i].getX(), points[i].getY(), world);
+      assertEquals(points[i].getX(), MultiPointEncoding.mortonToX(values[i], world.getMinX(), world.getMaxX()),
+          cellWidth);
+      assertEquals(points[i].getY(), MultiPointEncoding.mortonToY(values[i], world.getMinY(), world.getMaxY()),
+          cellHeight);
+    }
+    Arrays.sort(values);//as stored
+    SortedNumericDocValues docValues = sortedNumeric(values);
+
+    Point[] origins = randomPoints(1 + random().nextInt(3));
+    double expected = Double.MAX_VALUE;
+    for (Point point : points) {
+      for (Point origin : origins) {
+        expected = Math.min(expected, ctx.getDistCalc().distance(origin, point.getX(), point.getY()));
+      }
+    }
+    NearestPointFinder finder = new NearestPointFinder(origins, ctx);
+    final double delta = 1e-5;
+    if (points.length > 0)
+      assertEquals(expected, finder.minDistance(docValues, Double.MAX_VALUE), delta);
+    double maxDistance = randomFloatIn(0, 30);
+    double pruned = finder.minDistance(docValues, maxDistance);
+    if (expected <= maxDistance - delta) {
+      assertEquals(expected, pruned, delta);
+      assertTrue(finder.anyWithin(docValues, maxDistance));
+    } else if (expected > maxDistance + delta) {
+      assertTrue(pruned > maxDistance);
+      assertFalse(finder.anyWithin(docValues, maxDistance));
+    }
+  }
+
+  /** One document's values, sorted. */
+  private static SortedNumericDocValues sortedNumeric(final long[] values) {
+    return new SortedNumericDocValues() {
+      @Override
+      public void setDocument(int doc) {
+      }
+
+      @Override
+      public long valueAt(int index) {
+        return values[index];
+      }
+
+      @Override
+      public int count() {
+        return values.length;
+      }
+    };
+  }
+
+  @Test
+  public void testBlockedFormat() {
+    Point[] points = randomPoints(1 + random().nextInt(500));
+    if (random().nextBoolean()) {//clustered
+      for (int i = 0; i < points.length; i++) {
+        points[i] = ctx.makePoint(randomFloatIn(10, 11), randomFloatIn(40, 41));
+      }
+    }
+    BytesRef bytes = MultiPointEncoding.pointsToBytes(Arrays.asList(points), MultiPointEncoding.FORMAT_BLOCKED);
+    assertEquals(MultiPointEncoding.FORMAT_BLOCKED, MultiPointEncoding.readFormat(bytes));
+
+    //same points, different order
+    float[] floats = MultiPointEncoding.bytesToFloats(bytes);
+    float[] flatFloats = MultiPointEncoding.bytesToFloats(MultiPointEncoding.pointsToBytes(Arrays.asList(points)));
+    assertEquals(flatFloats.length, floats.length);
+    Arrays.sort(floats);
+    Arrays.sort(flatFloats);
+    assertArrayEquals(flatFloats, floats, 0.0f);
+
+    MultiPointCursor cursor = new MultiPointCursor().reset(bytes);
+    assertEquals(points.length, cursor.size());
+    int count = 0;
+    for (int block = 0; block < cursor.getBlockCount(); block++) {
+      cursor.seekBlock(block);
+      while (cursor.next()) {
+        assertEquals(count++, cursor.index());
+        assertTrue(cursor.getX() >= cursor.getBlockMinX(block) && cursor.getX() <= cursor.getBlockMaxX(block));
+        assertTrue(cursor.getY() >= cursor.getBlockMinY(block) && cursor.getY() <= cursor.getBlockMaxY(block));
+      }
+    }
+    assertEquals(points.length, count);
+
+    for (int iter = 0; iter < 20; iter++) {
+      Point origin = ctx.makePoint(randomFloatIn(-180, 180), randomFloatIn(-90, 90));
+      double expected = Double.MAX_VALUE;
+      for (Point point : points) {
+        expected = Math.min(expected, ctx.getDistCalc().distance(origin, (float) point.getX(), (float) point.getY()));
+      }
+      NearestPointFinder finder = new NearestPointFinder(origin, ctx);
+      assertEquals(expected, finder.minDistance(bytes), 0.0);
+      double maxDistance = randomFloatIn(0, 180);
+      double pruned = finder.minDistance(bytes, maxDistance);
+      if (expected <= maxDistance)
+        assertEquals(expected, pruned, 0.0);
+      else
+        assertTrue(pruned > maxDistance);
+    }
+  }
+
+  @Test
+  public void testCompactFormat() {
+    int precision = random().nextInt(MultiPointEncoding.MAX_PRECISION + 1);
+    Point[] points = new Point[2 + random().nextInt(100)];
+    for (int i = 0; i < points.length; i++) {//clustered, like the stores of a chain in one city
+      points[i] = ctx.makePoint(randomFloatIn(-74, -73.5f), randomFloatIn(40.5f, 41));
+    }
+    BytesRef bytes = MultiPointEncoding.pointsToBytes(Arrays.asList(points), MultiPointEncoding.FORMAT_COMPACT, precision);
+    BytesRef flat = MultiPointEncoding.pointsToBytes(Arrays.asList(points));
+    if (MultiPointEncoding.readFormat(bytes) == MultiPointEncoding.FORMAT_FLAT) {
+      assertEquals(flat.length, bytes.length);//fell back; rare with this many points
+      return;
+    }
+    assertEquals(MultiPointEncoding.FORMAT_COMPACT, MultiPointEncoding.readFormat(bytes));
+    assertTrue(bytes.length < flat.length);
+
+    float[] actual = MultiPointEncoding.bytesToFloats(bytes);
+    assertEquals(points.length * 2, actual.length);
+    double tolerance = 0.5 / Math.pow(10, precision) + 1e-4;//float rounding
+    for (int i = 0; i < actual.length; i += 2) {
+      boolean found = false;
+      for (Point point : points) {
+        found |= Math.abs(point.getX() - actual[i]) <= tolerance && Math.abs(point.getY() - actual[i + 1]) <= tolerance;
+      }
+      assertTrue("no point near " + actual[i] + "," + actual[i + 1], found);
+      if (i > 0)
+        assertTrue(actual[i] >= actual[i - 2]);//sorted by x
+    }
+
+    MultiPointCursor cursor = new MultiPointCursor().reset(bytes);
+    assertTrue(cursor.hasBoundingBox());
+    assertEquals(points.length, cursor.size());
+    while (cursor.next()) {
+      assertTrue(cursor.getX() >= cursor.getMinX() && cursor.getX() <= cursor.getMaxX());
+      assertTrue(cursor.getY() >= cursor.getMinY() && cursor.getY() <= cursor.getMaxY());
+    }
+
+    Point origin = ctx.makePoint(randomFloatIn(-180, 180), randomFloatIn(-90, 90));
+    double expectedDist = Double.MAX_VALUE;
+    for (int i = 0; i < actual.length; i += 2) {
+      expectedDist = Math.min(expectedDist, ctx.getDistCalc().distance(origin, actual[i], actual[i + 1]));
+    }
+    assertEquals(expectedDist, new NearestPointFinder(origin, ctx).minDistance(bytes), 0.0);
+  }
+
+  @Test
+  public void testCompactFormatSinglePoint() {
+    Point point = ctx.makePoint(randomFloatIn(-180, 180), randomFloatIn(-90, 90));
+    BytesRef bytes = MultiPointEncoding.pointsToBytes(Arrays.asList(point), MultiPointEncoding.FORMAT_COMPACT);
+    //smaller without a header
+    assertEquals(MultiPointEncoding.FORMAT_FLAT, MultiPointEncoding.readFormat(bytes));
+    assertEquals(MultiPointEncoding.POINT_LEN, bytes.length);
+  }
+
+  @Test
+  public void testVectorFormat() {
+    Point[] points = randomPoints(1 + random().nextInt(50));
+    BytesRef bytes = MultiPointEncoding.pointsToBytes(Arrays.asList(points), MultiPointEncoding.FORMAT_VECTOR);
+    assertEquals(MultiPointEncoding.FORMAT_VECTOR, MultiPointEncoding.readFormat(bytes));
+
+    float[] expected = MultiPointEncoding.bytesToFloats(MultiPointEncoding.pointsToBytes(Arrays.asList(points)));
+    MultiPointCursor cursor = new MultiPointCursor().reset(bytes);
+    assertTrue(cursor.isVector());
+    assertEquals(points.length, cursor.size());
+    for (int i = 0; i < expected.length; i += 2) {
+      assertTrue(cursor.next());
+      assertEquals(expected[i + 1], cursor.getY(), 1e-4);
+      if (Math.abs(expected[i + 1]) < 89)//longitude is meaningless at the poles
+        assertEquals(0, normalizedLonDelta(expected[i], cursor.getX()), 1e-3);
+      assertTrue(cursor.getX() >= cursor.getMinX() && cursor.getX() <= cursor.getMaxX());
+      assertTrue(cursor.getY() >= cursor.getMinY() && cursor.getY() <= cursor.getMaxY());
+    }
+    assertFalse(cursor.next());
+
+    for (int iter = 0; iter < 20; iter++) {
+      Point origin = ctx.makePoint(randomFloatIn(-180, 180), randomFloatIn(-90, 90));
+      double expectedDist = Double.MAX_VALUE;
+      for (int i = 0; i < expected.length; i += 2) {
+        expectedDist = Math.min(expectedDist, ctx.getDistCalc().distance(origin, expected[i], expected[i + 1]));
+      }
+      NearestPointFinder finder = new NearestPointFinder(origin, ctx);
+      assertEquals(expectedDist, finder.minDistance(bytes), 1e-4);
+      double maxDistance = randomFloatIn(0, 180);
+      double pruned = finder.minDistance(bytes, maxDistance);
+      if (expectedDist + 1e-4 < maxDistance)
+        assertEquals(expectedDist, pruned, 1e-4);
+      else if (expectedDist - 1e-4 > maxDistance)
+        assertTrue(pruned > maxDistance);
+    }
+  }
+
+  private static double normalizedLonDelta(double a, double b) {
+    double delta = a - b;
+    if (delta > 180)
+      delta -= 360;
+    else if (delta < -180)
+      delta += 360;
+    return delta;
+  }
+
+  private Point[] randomPoints(int count) {
+    Point[] points = new Point[count];
+    for (int i = 0; i < points.length; i++) {
+      points[i] = ctx.makePoint(randomFloatIn(-180, 180), randomFloatIn(-90, 90));
+    }
+    return points;
+  }
+
   private float randomFloatIn(float min, float max) {
     float delta = max - min;
     return delta * random().nextFloat() + min;
@@ -17,11 +17,36 @@ package org.apache.solr.schema;
  * limitations under the License.
  */
 
+import com.spatial4j.core.shape.Point;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.queries.function.FunctionValues;
+import org.apache.lucene.queries.function.ValueSource;
+import org.apache.lucene.spatial.MultiPointEncoding;
 import org.apache.solr.SolrTestCaseJ4;
+import org.apache.solr.common.SolrException;
 import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.util.ExecutorUtil;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.core.SolrInfoMBean;
+import org.apache.solr.search.SolrIndexSearcher;
+import org.apache.solr.search.function.distance.MultiPointCache;
+import org.apache.solr.search.function.distance.MultiPointDistanceValueSource;
+import org.apache.solr.search.function.distance.MultiPointDistanceValueSourceParser;
+import org.apache.solr.update.processor.MultiValUpdateRequestProcessorFactory;
+import org.apache.solr.util.RefCounted;
 import org.junit.BeforeClass;
-import org.junit.Ignore;
 import org.junit.Test;
+import org.noggit.ObjectBuilder;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 public class MultiPointFieldTest extends SolrTestCaseJ4 {
 
@@ -34,20 +59,512 @@ public class MultiPointFieldTest extends SolrTestCaseJ4 {
 
   @Test
   public void test() throws Exception {
+    assertNearest(fieldName);
+  }
+
+  @Test
+  public void testFormats() throws Exception {
+    for (String field : new String[]{"pointsDV_bbox", "pointsDV_blocked", "pointsDV_compact", "pointsDV_vector",
+        "pointsDV_morton"}) {
+      assertNearest(field);
+    }
+  }
+
+  /** Two documents in the field; the second's second point is the nearest to the query point. */
+  private void assertNearest(String field) throws Exception {
     clearIndex();
-    assertU(adoc("id", "100", fieldName, "1,2"));//1 point
-    assertU(adoc("id", "101", fieldName, "4,-1", fieldName, "3,5"));//2 points, 2nd is pretty close to query point
+    assertU(adoc("id", "100", field, "1,2"));//1 point
+    assertU(adoc("id", "101", field, "4,-1", field, "3,5"));//2 points, 2nd is pretty close to query point
     assertU(commit());
 
+    assertJQ(req(
+        "q", "{!func}distDV(" + field + ",\"3,4\")",//lat,lon order
+        "fl", "id,score",
+        "sort", "score asc")//want ascending due to increasing distance
+        , 1e-4
+        , "/response/docs/[0]/id=='101'"
+        , "/response/docs/[0]/score==0.99862987"//dist to 3,5
+    );
+  }
+
+  @Test
+  public void testPruning() throws Exception {
+    clearIndex();
+    String[] fields = {fieldName, "pointsDV_bbox", "pointsDV_blocked"};
+    SolrInputDocument doc = new SolrInputDocument();
+    doc.addField("id", "100");
+    for (int i = 0; i < 100; i++) {//far away, except for one
+      for (String field : fields) {
+        doc.addField(field, (i == 57 ? "3,5" : (-40 + i * 0.1) + "," + (100 - i * 0.1)));
+      }
+    }
+    assertU(adoc(doc));
+    for (int i = 0; i < 10; i++) {//far away documents
+      doc = new SolrInputDocument();
+      doc.addField("id", Integer.toString(101 + i));
+      for (int j = 0; j < 10; j++) {
+        for (String field : fields) {
+          doc.addField(field, (60 + i + j * 0.1) + "," + (-20 - j * 0.1));
+        }
+      }
+      assertU(adoc(doc));
+    }
+    assertU(commit());
+
+    SolrInfoMBean query = h.getCore().getInfoRegistry().get(MultiPointDistanceValueSourceParser.class.getName());
+    long[] scanned = new long[fields.length];
+    for (int i = 0; i < fields.length; i++) {
+      NamedList before = query.getStatistics();
+      assertJQ(req(
+          "q", "*:*",
+          "fl", "id",
+          "rows", "1",
+          "sort", "distDV(" + fields[i] + ",\"3,4\") asc")
+          , "/response/docs==[{'id':'100'}]"
+      );
+      scanned[i] = delta(before, query.getStatistics(), "pointsScanned");
+    }
+    //once the first is in the queue, the boxes of the others are too far to look inside
+    assertEquals("far documents' points", scanned[0] - 10 * 10, scanned[1]);
+    //and blocks other than the one with the nearest point are skipped too
+    assertTrue("scanned " + scanned[2], scanned[2] < MultiPointEncoding.DEFAULT_BLOCK_SIZE);
+  }
+
+  @Test
+  public void testCompactPrecision() throws Exception {
+    clearIndex();
+    SolrInputDocument doc = new SolrInputDocument();
+    doc.addField("id", "100");
+    for (int i = 0; i < 20; i++) {//enough close points for the compact format to be smaller than flat
+      String point = (3.1 + i * 0.0123456789) + "," + (5.9 + i * 0.0098765432);
+      doc.addField(fieldName, point);
+      doc.addField("pointsDV_compact", point);
+    }
+    assertU(adoc(doc));
+    assertU(commit());
+
+    //precision=5 keeps coordinates to the nearest 0.00001 degrees
+    double[] flat = nearestPoint(fieldName, "3.19,5.97");
+    double[] compact = nearestPoint("pointsDV_compact", "3.19,5.97");
+    for (int i = 0; i < 2; i++) {
+      assertEquals(flat[i], compact[i], 0.5e-5 + 1e-6);//+ float rounding
+      assertEquals(0, compact[i] * 1e5 - Math.round(compact[i] * 1e5), 1e-2);//on the grid
+    }
+    assertFalse("should have been rounded", flat[0] == compact[0] && flat[1] == compact[1]);
+    //so distances are off by up to the diagonal of that
+    assertEquals(flat[2], compact[2], Math.sqrt(2) * 0.5e-5 + 1e-6);
+  }
+
+  /** The lat, lon and distance of the field's point nearest to the query point, in the only document. */
+  private double[] nearestPoint(String field, String pt) throws Exception {
+    Map response = (Map) ObjectBuilder.fromJSON(JQ(req(
+        "q", "*:*",
+        "fl", "nearest:[mpdv field=" + field + " pt=\"" + pt + "\"]")));
+    Map nearest = (Map) ((Map) ((List) ((Map) response.get("response")).get("docs")).get(0)).get("nearest");
+    String[] latLon = ((String) nearest.get("point")).split(",");
+    return new double[]{Double.parseDouble(latLon[0]), Double.parseDouble(latLon[1]),
+        ((Number) nearest.get("distance")).doubleValue()};
+  }
+
+  @Test
+  public void testVectorOrdering() throws Exception {
+    clearIndex();
+    //the nearer points are across the antimeridian or the pole, where lat,lon differences mislead
+    String[][] points = {
+        {"0,178", "88,0"},//1.5 degrees from both query points
+        {"0,-179.8", "40,40"},//0.7 from 0,179.5
+        {"89.5,180", "-40,-40"}};//1.0 from 89.5,0
+    for (int i = 0; i < points.length; i++) {
+      assertU(adoc("id", Integer.toString(100 + i), "pointsDV_vector", points[i][0], "pointsDV_vector", points[i][1],
+          fieldName, points[i][0], fieldName, points[i][1]));
+    }
+    assertU(commit());
+
+    for (String field : new String[]{"pointsDV_vector", fieldName}) {//by chord, and by haversine
+      assertJQ(req(
+          "q", "{!func}distDV(" + field + ",\"0,179.5\")",
+          "fl", "id,score",
+          "sort", "score asc")
+          , 1e-4
+          , "/response/docs/[0]/id=='101'"
+          , "/response/docs/[0]/score==0.7"
+          , "/response/docs/[1]/id=='100'"
+          , "/response/docs/[1]/score==1.5"
+      );
+      assertJQ(req(
+          "q", "{!func}distDV(" + field + ",\"89.5,0\")",
+          "fl", "id,score",
+          "sort", "score asc")
+          , 1e-4
+          , "/response/docs/[0]/id=='102'"
+          , "/response/docs/[0]/score==1.0"
+          , "/response/docs/[1]/id=='100'"
+          , "/response/docs/[1]/score==1.5"
+      );
+    }
+  }
+
+  @Test
+  public void testMortonStorage() throws Exception {
+    clearIndex();
+    SolrInputDocument doc = new SolrInputDocument();
+    doc.addField("id", "100");
+    for (int i = 0; i < 5000; i++) {//more than the binary encoding can hold; far away, except for one
+      doc.addField("pointsDV_morton", (i == 2500 ? "3,5" : (-40 + i * 0.001) + "," + (100 - i * 0.001)));
+    }
+    assertU(adoc(doc));
+    assertU(adoc("id", "101", "pointsDV_morton", "1,2"));//1 point
+    assertU(adoc("id", "102"));//no points
+    assertU(commit());
 
     assertJQ(req(
-        "q", "{!func}distDV("+ fieldName +",\"3,4\")",//lat,lon order
+        "q", "{!func}distDV(pointsDV_morton,\"3,4\")",//lat,lon order
         "fl","id,score",
-        "sort","score asc")//want ascending due to increasing distance
+        "sort","score asc")
+        , 1e-4
+        , "/response/docs/[0]/id=='100'"
+        , "/response/docs/[0]/score==0.99862987"//dist to 3,5
+    );
+    assertJQ(req(
+        "q", "*:*",
+        "fl", "id",
+        "rows", "1",
+        "sort", "distDV(pointsDV_morton,\"3,4\") asc")
+        , "/response/docs==[{'id':'100'}]"
+    );
+    assertJQ(req(
+        "q", "*:*",
+        "fl", "id",
+        "fq", "{!mpdvfilt field=pointsDV_morton pt=\"3,4\" d=120}")
+        , "/response/docs==[{'id':'100'}]"
+    );
+  }
+
+  @Test
+  public void testStatistics() throws Exception {
+    clearIndex();
+    SolrInfoMBean update = h.getCore().getInfoRegistry().get(MultiValUpdateRequestProcessorFactory.class.getName());
+    SolrInfoMBean query = h.getCore().getInfoRegistry().get(MultiPointDistanceValueSourceParser.class.getName());
+    NamedList updateBefore = update.getStatistics();
+    NamedList queryBefore = query.getStatistics();
+    assertU(adoc("id", "100", fieldName, "1,2", fieldName, "3,5", fieldName, "4,-1"));
+    assertU(adoc("id", "101", fieldName, "1,2", fieldName, "3,6"));
+    assertU(commit());
+    assertJQ(req(
+        "q", "{!func}distDV(" + fieldName + ",\"3,4\")",
+        "fl", "id",
+        "sort", "score asc")
+        , "/response/docs==[{'id':'100'},{'id':'101'}]"
+    );
+    //unless turned off
+    assertJQ(req(
+        "q", "{!func stats=false}distDV(" + fieldName + ",\"3,4\")",
+        "fl", "id")
+        , "/response/numFound==2"
+    );
+
+    NamedList updateAfter = update.getStatistics();
+    assertEquals(2, delta(updateBefore, updateAfter, "docs"));
+    assertEquals(5, delta(updateBefore, updateAfter, "pointsParsed"));
+    assertEquals(5, delta(updateBefore, updateAfter, "pointsEncoded"));
+    assertEquals(0, delta(updateBefore, updateAfter, "pointsRemoved"));
+    assertEquals(5 * 8, delta(updateBefore, updateAfter, "bytesWritten"));//flat
+
+    NamedList queryAfter = query.getStatistics();
+    assertEquals(1, delta(queryBefore, queryAfter, "segments"));//added once it's done
+    assertEquals(2, delta(queryBefore, queryAfter, "docsEvaluated"));
+    assertEquals(5, delta(queryBefore, queryAfter, "pointsScanned"));
+    assertEquals(2, delta((NamedList) queryBefore.get("pointsPerDoc"), (NamedList) queryAfter.get("pointsPerDoc"),
+        "2-3"));
+  }
+
+  private static long delta(NamedList before, NamedList after, String name) {
+    return ((Number) after.get(name)).longValue() - ((Number) before.get(name)).longValue();
+  }
+
+  @Test
+  public void testCache() throws Exception {
+    clearIndex();
+    assertU(adoc("id", "100", "pointsDV_cached", "1,2"));//1 point
+    assertU(adoc("id", "101", "pointsDV_cached", "4,-1", "pointsDV_cached", "3,5"));
+    assertU(adoc("id", "102"));//no points
+    assertU(commit());
+    MultiPointCache cache = ((MultiPointDocValuesField) h.getCore().getLatestSchema()
+        .getFieldType("pointsDV_cached")).getCache();
+    long hits = cache.getHits();
+
+    assertJQ(req(
+        "q", "{!func}distDV(pointsDV_cached,\"3,4\")",//lat,lon order
+        "fl","id,score",
+        "sort","score asc")
         , 1e-4
         , "/response/docs/[0]/id=='101'"
         , "/response/docs/[0]/score==0.99862987"//dist to 3,5
     );
+    assertTrue(cache.size() > 0);
+    assertJQ(req(
+        "q", "*:*",
+        "fl", "id",
+        "sort", "distDV(pointsDV_cached,\"1,2\") asc")
+        , "/response/docs==[{'id':'100'},{'id':'101'},{'id':'102'}]"
+    );
+    assertTrue(cache.getHits() > hits);
+  }
+
+  @Test
+  public void testCacheTooBig() throws Exception {
+    clearIndex();
+    //a budget of ~200 bytes holds the offsets of a few docs and a dozen points
+    SolrInputDocument doc = new SolrInputDocument();
+    doc.addField("id", "100");
+    for (int i = 0; i < 20; i++) {//far away, except for one
+      doc.addField("pointsDV_cached_small", (i == 7 ? "3,5" : (-40 + i * 0.1) + "," + (100 - i * 0.1)));
+    }
+    assertU(adoc(doc));
+    assertU(adoc("id", "101", "pointsDV_cached_small", "1,2"));
+    assertU(commit());
+    MultiPointCache cache = ((MultiPointDocValuesField) h.getCore().getLatestSchema()
+        .getFieldType("pointsDV_cached_small")).getCache();
+    SolrInfoMBean query = h.getCore().getInfoRegistry().get(MultiPointDistanceValueSourceParser.class.getName());
+
+    //the second time it's known not to fit; the origin's repeated to miss the query result cache
+    for (String origins : new String[]{"\"3,4\"", "\"3,4\",\"3,4\""}) {
+      long misses = cache.getMisses();
+      assertJQ(req(
+          "q", "{!func}distDV(pointsDV_cached_small," + origins + ")",
+          "fl", "id,score",
+          "sort", "score asc")
+          , 1e-4
+          , "/response/docs/[0]/id=='100'"
+          , "/response/docs/[0]/score==0.99862987"//dist to 3,5
+      );
+      assertEquals(0, cache.size());
+      assertTrue(cache.getMisses() > misses);
+      NamedList stats = (NamedList) ((NamedList) query.getStatistics().get("caches")).get("mpdv_cached_small");
+      assertEquals(1, ((Number) stats.get("tooBig")).intValue());
+    }
+  }
+
+  @Test
+  public void testWarming() throws Exception {
+    clearIndex();
+    assertU(adoc("id", "100", "pointsDV_cached", "1,2"));
+    assertU(commit());
+    assertU(adoc("id", "101", "pointsDV_cached", "4,-1", "pointsDV_cached", "3,5"));
+    assertU(commit());
+    MultiPointCache cache = ((MultiPointDocValuesField) h.getCore().getLatestSchema()
+        .getFieldType("pointsDV_cached")).getCache();
+    long misses = cache.getMisses();
+
+    assertJQ(req(
+        "q", "*:*",
+        "fl", "id",
+        "sort", "distDV(pointsDV_cached,\"3,4\") asc")
+        , "/response/docs==[{'id':'101'},{'id':'100'}]"
+    );
+    assertEquals("every segment should have been warmed", misses, cache.getMisses());
+  }
+
+  @Test
+  public void testQueryResultCache() throws Exception {
+    clearIndex();
+    assertU(adoc("id", "100", fieldName, "1,2"));
+    assertU(adoc("id", "101", fieldName, "4,-1", fieldName, "3,5"));
+    assertU(commit());
+
+    //the same function from another point mustn't be served from the cache
+    assertJQ(req(
+        "q", "{!func}distDV("+ fieldName +",\"3,4\")",
+        "fl","id",
+        "sort","score asc")
+        , "/response/docs==[{'id':'101'},{'id':'100'}]"
+    );
+    assertJQ(req(
+        "q", "{!func}distDV("+ fieldName +",\"1,2\")",
+        "fl","id",
+        "sort","score asc")
+        , "/response/docs==[{'id':'100'},{'id':'101'}]"
+    );
+  }
+
+  @Test
+  public void testSnap() throws Exception {
+    clearIndex();
+    assertU(adoc("id", "100", fieldName, "1,2"));
+    assertU(commit());
+
+    //a 1000km grid puts the point at 0,0
+    assertJQ(req(
+        "q", "{!func snap=1000}distDV("+ fieldName +",\"3,4\")",
+        "fl","id,score")
+        , 1e-4
+        , "/response/docs/[0]/score==2.235977"
+    );
+  }
+
+  @Test
+  public void testRangeFacets() throws Exception {
+    clearIndex();
+    String field = random().nextBoolean() ? fieldName : "pointsDV_cached";
+    assertU(adoc("id", "100", field, "1,2"));//~314km from 3,4
+    assertU(adoc("id", "101", field, "4,-1", field, "3,5"));//~111km
+    assertU(adoc("id", "102", field, "3,4.1"));//~11km
+    assertU(adoc("id", "103", field, "-40,100"));//far
+    assertU(adoc("id", "104"));//no points
+    assertU(commit());
+
+    assertJQ(req(
+        "q", "*:*",
+        "rows", "0",
+        "facet", "true",
+        "facet.mpdv.field", field,
+        "facet.mpdv.pt", "3,4",
+        "facet.mpdv.ranges", "1,50,120,400")
+        , "/facet_mpdv/" + field + "=={'1':0,'50':1,'120':2,'400':3}"
+    );
+    //only within the matching docs, from the nearer of two points
+    assertJQ(req(
+        "q", "id:100 OR id:103",
+        "rows", "0",
+        "facet", "true",
+        "facet.mpdv.field", field,
+        "facet.mpdv.pt", "3,4",
+        "facet.mpdv.pt", "-40,100",
+        "facet.mpdv.ranges", "1,400")
+        , "/facet_mpdv/" + field + "=={'1':1,'400':2}"
+    );
+    for (String ranges : new String[]{"-1,50", "1,x", "50,1", "1,1", "NaN", "1,,5"}) {
+      assertQEx("bad ranges " + ranges, req(
+          "q", "*:*",
+          "facet", "true",
+          "facet.mpdv.field", field,
+          "facet.mpdv.pt", "3,4",
+          "facet.mpdv.ranges", ranges),
+          SolrException.ErrorCode.BAD_REQUEST.code);
+    }
+  }
+
+  @Test
+  public void testTransformer() throws Exception {
+    clearIndex();
+    String field = random().nextBoolean() ? fieldName : "pointsDV_cached";
+    assertU(adoc("id", "100", field, "1,2"));
+    assertU(adoc("id", "101", field, "4,-1", field, "3,5"));
+    assertU(adoc("id", "102"));//no points
+    assertU(commit());
+
+    assertJQ(req(
+        "q", "*:*",
+        "fl", "id,nearest:[mpdv field=" + field + " pt=\"3,4\"]",
+        "sort", "distDV(" + field + ",\"3,4\") asc")
+        , 1e-4
+        , "/response/docs/[0]/id=='101'"
+        , "/response/docs/[0]/nearest/distance==0.99862950"
+        , "/response/docs/[0]/nearest/point=='3.0,5.0'"
+        , "/response/docs/[1]/nearest/point=='1.0,2.0'"
+        , "/response/docs/[2]=={'id':'102'}"
+    );
+  }
+
+  @Test
+  public void testSort() throws Exception {
+    clearIndex();
+    String field = random().nextBoolean() ? fieldName : "pointsDV_bbox";
+    assertU(adoc("id", "100", field, "1,2"));
+    assertU(adoc("id", "101", field, "4,-1", field, "3,5"));
+    assertU(adoc("id", "102", field, "-40,100", field, "60,-20"));//far
+    assertU(adoc("id", "103"));//no points
+    assertU(adoc("id", "104", field, "3,4.5"));
+    assertU(commit());
+
+    assertJQ(req(
+        "q", "*:*",
+        "fl", "id",
+        "sort", "distDV(" + field + ",\"3,4\") asc")
+        , "/response/docs==[{'id':'104'},{'id':'101'},{'id':'100'},{'id':'102'},{'id':'103'}]"
+    );
+    //small queue, to exercise pruning at the bottom
+    assertJQ(req(
+        "q", "*:*",
+        "fl", "id",
+        "rows", "2",
+        "sort", "distDV(" + field + ",\"3,4\") asc")
+        , "/response/docs==[{'id':'104'},{'id':'101'}]"
+    );
+    assertJQ(req(
+        "q", "*:*",
+        "fl", "id",
+        "rows", "2",
+        "sort", "distDV(" + field + ",\"3,4\") desc")
+        , "/response/docs==[{'id':'103'},{'id':'102'}]"
+    );
+  }
+
+  @Test
+  public void testMultipleOrigins() throws Exception {
+    clearIndex();
+    assertU(adoc("id", "100", fieldName, "1,2"));
+    assertU(adoc("id", "101", fieldName, "40,-89", fieldName, "-30,10"));
+    assertU(adoc("id", "102", fieldName, "-40,100"));//far from both
+    assertU(commit());
+
+    assertJQ(req(
+        "q", "*:*",
+        "fl", "id",
+        "sort", "distDV(" + fieldName + ",\"3,4\",\"40,-90\") asc")
+        , "/response/docs==[{'id':'101'},{'id':'100'},{'id':'102'}]"
+    );
+    //101 is ~0.77 degrees from the second point; 100 is ~2.8 from the first
+    assertJQ(req(
+        "q", "{!frange u=1}distDV(" + fieldName + ",\"3,4\",\"40,-90\")",
+        "fl", "id")
+        , "/response/docs==[{'id':'101'}]"
+    );
+  }
+
+  @Test
+  public void testFilter() throws Exception {
+    clearIndex();
+    String field = random().nextBoolean() ? fieldName : "pointsDV_bbox";
+    assertU(adoc("id", "100", field, "1,2"));//~314km from 3,4
+    assertU(adoc("id", "101", field, "4,-1", field, "3,5"));//~111km
+    assertU(adoc("id", "102"));//no points
+    assertU(commit());
+
+    assertJQ(req(
+        "q", "*:*",
+        "fl", "id",
+        "fq", "{!mpdvfilt field=" + field + " pt=\"3,4\" d=120}")
+        , "/response/docs==[{'id':'101'}]"
+    );
+    assertJQ(req(
+        "q", "*:*",
+        "fl", "id",
+        "sort", "id asc",
+        "sfield", field,
+        "pt", "3,4",
+        "d", "400",
+        "fq", "{!mpdvfilt cost=150}")
+        , "/response/docs==[{'id':'100'},{'id':'101'}]"
+    );
+    assertJQ(req(
+        "q", "*:*",
+        "fl", "id",
+        "fq", "{!mpdvfilt field=" + field + " pt=\"3,4\" d=50}")
+        , "/response/numFound==0"
+    );
+    //a cached filter, or the query, checks every document
+    assertJQ(req(
+        "q", "*:*",
+        "fl", "id",
+        "fq", "{!mpdvfilt cache=true field=" + field + " pt=\"3,4\" d=120}")
+        , "/response/docs==[{'id':'101'}]"
+    );
+    assertJQ(req(
+        "q", "{!mpdvfilt field=" + field + " pt=\"3,4\" d=120}",
+        "fl", "id")
+        , "/response/docs==[{'id':'101'}]"
+    );
   }
 
   @Test
@@ -65,24 +582,35 @@ public class MultiPointFieldTest extends SolrTestCaseJ4 {
   }
 
 
-  @Test @Ignore
-  public void testLargeDocument() throws Exception {
+  @Test
+  public void testReducedDocument() throws Exception {
     clearIndex();
+    SolrInfoMBean update = h.getCore().getInfoRegistry().get(MultiValUpdateRequestProcessorFactory.class.getName());
+    NamedList before = update.getStatistics();
     SolrInputDocument doc = new SolrInputDocument();
     doc.addField("id", "100");
     for (int i = 0; i < 4097; i++) {
-      doc.addField(fieldName, "40,-90");
+      doc.addField("pointsDV_reduced", "40,-90");
+    }
+    doc.addField("pointsDV_reduced", "40.00001,-90");//snaps onto the others
+    assertU(adoc(doc));
+    doc = new SolrInputDocument();
+    doc.addField("id", "101");
+    for (int i = 0; i < 300; i++) {
+      doc.addField("pointsDV_reduced", (i % 30) + "," + (i / 30));
     }
     assertU(adoc(doc));
     assertU(commit());
-
+    //dedup leaves one of 100's, snap merges the last; 101 is thinned to maxPoints
+    assertEquals(4097 + 200, delta(before, update.getStatistics(), "pointsRemoved"));
 
     assertJQ(req(
-        "q", "{!func}distDV("+ fieldName +",\"40,-90\")",//lat,lon order
+        "q", "{!func}distDV(pointsDV_reduced,\"40,-90\")",//lat,lon order
         "fl","id,score",
-        "sort","score asc")//want ascending due to increasing distance
+        "sort","score asc")
         , 1e-4
         , "/response/docs/[0]/id=='100'"
+        , "/response/docs/[0]/score==0.0"
     );
   }
 
@@ -104,4 +632,225 @@ public class MultiPointFieldTest extends SolrTestCaseJ4 {
     );
   }
 
+  @Test
+  public void testFastCalc() throws Exception {
+    clearIndex();
+    assertU(adoc("id", "100", fieldName, "1,2"));
+    assertU(adoc("id", "101", fieldName, "4,-1", fieldName, "3,5"));
+    assertU(commit());
+
+    assertJQ(req(
+        "q", "{!func calc=fast v=distDV("+ fieldName +",\"3,4\")}",
+        "fl","id,score",
+        "sort","score asc")
+        , 1e-4
+        , "/response/docs/[0]/id=='101'"
+        , "/response/docs/[0]/score==0.99862987"//exact dist to 3,5
+    );
+  }
+
+  @Test
+  public void testParallel() throws Exception {
+    clearIndex();
+    //a segment each
+    assertU(adoc("id", "100", fieldName, "1,2"));
+    assertU(commit());
+    assertU(adoc("id", "101", fieldName, "4,-1", fieldName, "3,5"));
+    assertU(commit());
+    assertU(adoc("id", "102", fieldName, "3,4.5"));
+    assertU(commit());
+
+    for (String parallel : new String[]{"false", "true", "1"}) {
+      assertJQ(req(
+          "q", "{!func parallel=" + parallel + " v=distDV(" + fieldName + ",\"3,4\")}",
+          "fl", "id,score",
+          "sort", "score asc")
+          , 1e-4
+          , "/response/docs/[0]/id=='102'"
+          , "/response/docs/[1]/id=='101'"
+          , "/response/docs/[1]/score==0.99862987"//dist to 3,5
+          , "/response/docs/[2]/id=='100'"
+      );
+    }
+    assertQEx("bad parallel", req("q", "{!func parallel=yes v=distDV(" + fieldName + ",\"3,4\")}"),
+        SolrException.ErrorCode.BAD_REQUEST.code);
+  }
+
+  @Test
+  public void testParallelSaturated() throws Exception {
+    clearIndex();
+    //a segment each
+    assertU(adoc("id", "100", fieldName, "1,2"));
+    assertU(commit());
+    assertU(adoc("id", "101", fieldName, "4,-1", fieldName, "3,5"));
+    assertU(commit());
+    assertU(adoc("id", "102", fieldName, "3,4.5"));
+    assertU(commit());
+
+    MultiPointDocValuesField type = (MultiPointDocValuesField) h.getCore().getLatestSchema().getFieldType(fieldName);
+    Point[] points = new Point[]{type.parseLatLon("3,4")};
+    final CountDownLatch release = new CountDownLatch(1);
+    ThreadPoolExecutor pool = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS,
+        new ArrayBlockingQueue<Runnable>(1));
+    RefCounted<SolrIndexSearcher> searcher = h.getCore().getSearcher();
+    try {
+      Runnable blocker = new Runnable() {
+        @Override
+        public void run() {
+          try {
+            release.await();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+        }
+      };
+      pool.execute(blocker);//running
+      pool.execute(blocker);//queued; the pool is full
+
+      List<LeafReaderContext> leaves = searcher.get().getIndexReader().leaves();
+      assertEquals(3, leaves.size());
+      MultiPointDistanceValueSource parallel = new MultiPointDistanceValueSource(fieldName, points, type, false);
+      parallel.setParallel(pool, 2);
+      Map context = ValueSource.newContext(searcher.get());
+      parallel.createWeight(context, searcher.get());
+      //the query skipped the first leaves, and every task is rejected
+      LeafReaderContext last = leaves.get(leaves.size() - 1);
+      FunctionValues values = parallel.getValues(context, last);
+      FunctionValues expected = new MultiPointDistanceValueSource(fieldName, points, type, false)
+          .getValues(ValueSource.newContext(searcher.get()), last);
+      assertEquals(expected.doubleVal(0), values.doubleVal(0), 0.0);
+    } finally {
+      release.countDown();
+      searcher.decref();
+      ExecutorUtil.shutdownAndAwaitTermination(pool);
+    }
+  }
+
+  @Test
+  public void testCursorMark() throws Exception {
+    clearIndex();
+    assertU(adoc("id", "100", fieldName, "1,2"));
+    assertU(adoc("id", "101", fieldName, "4,-1", fieldName, "3,5"));
+    assertU(commit());
+    assertU(adoc("id", "102", fieldName, "-40,100", fieldName, "60,-20"));//far
+    assertU(adoc("id", "103"));//no points
+    assertU(adoc("id", "104", fieldName, "3,4.5"));
+    assertU(adoc("id", "105", fieldName, "3,4.5"));//tie with 104
+    assertU(commit());
+
+    String sort = "distDV(" + fieldName + ",\"3,4\") asc, id asc";
+    List<List<String>> pages = Arrays.asList(
+        Arrays.asList("104", "105"),
+        Arrays.asList("101", "100"),
+        Arrays.asList("102", "103"),
+        Collections.<String>emptyList());
+    String cursorMark = "*";
+    for (List<String> page : pages) {
+      Map response = (Map) ObjectBuilder.fromJSON(JQ(req(
+          "q", "*:*",
+          "fl", "id",
+          "rows", "2",
+          "sort", sort,
+          "cursorMark", cursorMark)));
+      List<String> ids = new ArrayList<String>();
+      for (Object doc : (List) ((Map) response.get("response")).get("docs")) {
+        ids.add((String) ((Map) doc).get("id"));
+      }
+      assertEquals(page, ids);
+      cursorMark = (String) response.get("nextCursorMark");
+    }
+  }
+
+  @Test
+  public void testExport() throws Exception {
+    clearIndex();
+    assertU(adoc("id", "100", fieldName, "1,2"));
+    assertU(adoc("id", "101", fieldName, "4,-1", fieldName, "3,5"));
+    assertU(commit());
+    assertU(adoc("id", "102", fieldName, "-40,100", fieldName, "60,-20"));//far
+    assertU(adoc("id", "103"));//no points; omitted
+    assertU(adoc("id", "104", fieldName, "3,4.5"));
+    assertU(commit());
+
+    assertJQ(req(
+        "qt", "/mpdvexport",
+        "sfield", fieldName,
+        "pt", "3,4",
+        "fl", "id")
+        , "/response/numFound==4"
+        , "/response/docs==[{'id':'104'},{'id':'101'},{'id':'100'},{'id':'102'}]"
+    );
+    //defType applies to q
+    assertJQ(req(
+        "qt", "/mpdvexport",
+        "defType", "dismax",
+        "qf", "id",
+        "q", "100 102",
+        "sfield", fieldName,
+        "pt", "3,4",
+        "rows", "1",
+        "fl", "id")
+        , "/response/numFound==2"
+        , "/response/docs==[{'id':'100'}]"
+    );
+    //the nearer of two points, within d, filtered
+    assertJQ(req(
+        "qt", "/mpdvexport",
+        "fq", "-id:104",
+        "sfield", fieldName,
+        "pt", "3,4",
+        "pt", "-40,99",
+        "d", "400",
+        "fl", "id,score")
+        , 1e-4
+        , "/response/docs/[0]/id=='102'"
+        , "/response/docs/[1]/id=='101'"
+        , "/response/docs/[1]/score==0.99862987"//dist to 3,5
+        , "/response/docs/[2]/id=='100'"
+        , "/response/numFound==3"
+    );
+    assertQEx("sfield must be multi-point", req("qt", "/mpdvexport", "sfield", "id", "pt", "3,4"),
+        SolrException.ErrorCode.BAD_REQUEST.code);
+  }
+
+  @Test
+  public void testNearest() throws Exception {
+    clearIndex();
+    String field = "pointsDV_rpt";
+    assertU(adoc("id", "100", field, "1,2"));
+    assertU(adoc("id", "101", field, "4,-1", field, "3,5"));
+    assertU(commit());
+    assertU(adoc("id", "102", field, "-40,100", field, "60,-20"));//far
+    assertU(adoc("id", "103"));//no points
+    assertU(adoc("id", "104", field, "3,4.5"));
+    assertU(adoc("id", "105", field, "3.01,4"));
+    assertU(commit());
+    assertU(delI("105"));
+    assertU(commit());
+
+    String sort = "distDV(" + field + ",\"3,4\") asc";
+    assertJQ(req(
+        "q", "{!mpdvnear sfield=" + field + " pt=3,4 k=2}",
+        "fl", "id",
+        "sort", sort)
+        , "/response/docs==[{'id':'104'},{'id':'101'}]"
+    );
+    //a small first ring, grown to reach the far document
+    assertJQ(req(
+        "q", "{!mpdvnear pt=3,4 k=4 r=1}",
+        "sfield", field,
+        "fl", "id",
+        "sort", sort)
+        , "/response/docs==[{'id':'104'},{'id':'101'},{'id':'100'},{'id':'102'}]"
+    );
+    //101 is 111km away
+    assertJQ(req(
+        "q", "{!mpdvnear sfield=" + field + " pt=3,4 k=3 d=100}",
+        "fl", "id")
+        , "/response/docs==[{'id':'104'}]"
+    );
+    assertQEx("field without a prefix tree", req("q", "{!mpdvnear sfield=" + fieldName + " pt=3,4}"),
+        SolrException.ErrorCode.BAD_REQUEST.code);
+  }
+
 }